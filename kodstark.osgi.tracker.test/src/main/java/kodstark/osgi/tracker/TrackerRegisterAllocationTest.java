@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import kodstark.osgi.tracker.internal.testsupport.ClassTestedRegister;
+import kodstark.osgi.tracker.internal.testsupport.InterfaceTestedRegister01;
+import kodstark.osgi.tracker.test.BundleContextMock;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Bytes allocated by warmed-up lookups of register. Allocations are counted only in thread doing lookups, so during
+ * churn services are registered and unregistered by other thread and tracking events are not counted.
+ */
+public class TrackerRegisterAllocationTest
+{
+    private static final int WARM_UP_LOOKUPS = 50000;
+    private static final int LOOKUPS = 200000;
+    /**
+     * Bytes per lookup when services don't change. It only tolerates allocations of measuring.
+     */
+    private static final double STEADY_BYTES_PER_LOOKUP = 0.05;
+    /**
+     * Bytes per lookup when services change about every millisecond. Lists of services are rebuilt after change.
+     */
+    private static final double CHURN_BYTES_PER_LOOKUP = 4;
+    private BundleContextMock contextMock;
+    private TrackerRegister register;
+    private Method allocatedBytesMethod;
+    private volatile boolean churning;
+    private Thread churn;
+    private int sink;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        try
+        {
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean", false, null);
+            allocatedBytesMethod = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+            Method enabledMethod = beanClass.getMethod("setThreadAllocatedMemoryEnabled", boolean.class);
+            enabledMethod.invoke(threadBean, Boolean.TRUE);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            allocatedBytesMethod = null;
+        }
+        Assume.assumeTrue(allocatedBytesMethod != null);
+        contextMock = new BundleContextMock();
+        contextMock.replay();
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(1), 10);
+        register = new TrackerRegister(contextMock.getBundleContext());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        churning = false;
+        if (churn != null)
+        {
+            churn.join();
+        }
+        if (register != null)
+        {
+            register.close();
+        }
+    }
+
+    @Test
+    public void shouldGetServiceWithoutAllocation() throws Exception
+    {
+        assertBudget("getService", STEADY_BYTES_PER_LOOKUP, measureBytesPerLookup(new GetService()));
+    }
+
+    @Test
+    public void shouldGetOptionalServiceWithoutAllocation() throws Exception
+    {
+        assertBudget("getOptionalService", STEADY_BYTES_PER_LOOKUP, measureBytesPerLookup(new GetOptionalService()));
+    }
+
+    @Test
+    public void shouldGetServicesWithoutAllocation() throws Exception
+    {
+        assertBudget("getServices", STEADY_BYTES_PER_LOOKUP, measureBytesPerLookup(new GetServices()));
+    }
+
+    @Test
+    public void shouldGetServiceInBudgetDuringChurn() throws Exception
+    {
+        startChurn();
+        assertBudget("getService with churn", CHURN_BYTES_PER_LOOKUP, measureBytesPerLookup(new GetService()));
+    }
+
+    @Test
+    public void shouldGetOptionalServiceInBudgetDuringChurn() throws Exception
+    {
+        startChurn();
+        assertBudget("getOptionalService with churn", CHURN_BYTES_PER_LOOKUP,
+                measureBytesPerLookup(new GetOptionalService()));
+    }
+
+    @Test
+    public void shouldGetServicesInBudgetDuringChurn() throws Exception
+    {
+        startChurn();
+        assertBudget("getServices with churn", CHURN_BYTES_PER_LOOKUP, measureBytesPerLookup(new GetServices()));
+    }
+
+    private static void assertBudget(String lookup, double budget, double bytes)
+    {
+        assertTrue(lookup + " allocates " + bytes + " bytes per lookup, budget is " + budget, bytes <= budget);
+    }
+
+    private double measureBytesPerLookup(Runnable lookup) throws Exception
+    {
+        for (int i = 0; i < WARM_UP_LOOKUPS; i++)
+        {
+            lookup.run();
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < LOOKUPS; i++)
+        {
+            lookup.run();
+        }
+        return (allocatedBytes() - before) / (double) LOOKUPS;
+    }
+
+    private long allocatedBytes() throws Exception
+    {
+        return (Long) allocatedBytesMethod.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+    }
+
+    /**
+     * Register and unregister second service of lower ranking in other thread about every millisecond.
+     */
+    private void startChurn()
+    {
+        churning = true;
+        churn = new Thread("churn")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (churning)
+                    {
+                        ServiceReference reference = contextMock.registerService(InterfaceTestedRegister01.class,
+                                new ClassTestedRegister(2), 0);
+                        Thread.sleep(1);
+                        contextMock.unregisterService(reference);
+                        Thread.sleep(1);
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        churn.start();
+    }
+
+    private class GetService implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            sink += register.getService(InterfaceTestedRegister01.class).action();
+        }
+    }
+
+    private class GetOptionalService implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            sink += register.getOptionalService(InterfaceTestedRegister01.class) != null ? 1 : 0;
+        }
+    }
+
+    private class GetServices implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            sink += register.getServices(InterfaceTestedRegister01.class).size();
+        }
+    }
+}
@@ -13,23 +13,51 @@
 package kodstark.osgi.tracker;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import kodstark.osgi.tracker.internal.LazyServiceTracker;
 import kodstark.osgi.tracker.internal.testsupport.ClassTestedRegister;
 import kodstark.osgi.tracker.internal.testsupport.InterfaceTestedRegister;
 import kodstark.osgi.tracker.internal.testsupport.InterfaceTestedRegister01;
 import kodstark.osgi.tracker.internal.testsupport.InterfaceTestedRegister02;
 import kodstark.osgi.tracker.test.BundleContextMock;
+import kodstark.osgi.tracker.test.TraceReplayer;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
 
 public class TrackerRegisterTest
 {
+    private static final long PROVIDER_BUNDLE_ID = 7L;
     private TrackerRegister register;
     private BundleContextMock contextMock;
 
@@ -90,4 +118,405 @@ public class TrackerRegisterTest
         final List<InterfaceTestedRegister01> services = register.getServices(InterfaceTestedRegister01.class);
         assertEquals(1, services.size());
     }    
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectLookupAfterClose() throws Exception
+    {
+        contextMock.bindInterfaceWithInstance(InterfaceTestedRegister01.class, new ClassTestedRegister(1));
+        contextMock.replay();
+        register.getService(InterfaceTestedRegister01.class);
+        register.close();
+        register.close();
+        register.getOptionalService(InterfaceTestedRegister01.class);
+    }
+
+    @Test
+    public void shouldDynamicGreedyPolicySwitchToHigherRankedService() throws Exception
+    {
+        contextMock.replay();
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(1), 0);
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2), 10);
+        assertEquals(2, register.getService(InterfaceTestedRegister01.class).action());
+    }
+
+    @Test
+    public void shouldStickyPolicyKeepServiceUntilItIsUnregistered() throws Exception
+    {
+        contextMock.replay();
+        register.setBindingPolicy(InterfaceTestedRegister01.class, BindingPolicy.STICKY);
+        ServiceReference first = contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(1), 0);
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2), 10);
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+        contextMock.unregisterService(first);
+        assertEquals(2, register.getService(InterfaceTestedRegister01.class).action());
+    }
+
+    @Test
+    public void shouldDropTrackersOfRefreshedBundle() throws Exception
+    {
+        register.trackerFactory = new ProviderTrackerFactory();
+        contextMock.bindInterfaceWithInstance(InterfaceTestedRegister01.class, new ClassTestedRegister(1));
+        contextMock.bindInterfaceWithInstance(InterfaceTestedRegister02.class, new ClassTestedRegister(2));
+        contextMock.replay();
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+        assertEquals(2, register.getService(InterfaceTestedRegister02.class).action());
+        fireBundleEvent(BundleEvent.UNRESOLVED, PROVIDER_BUNDLE_ID);
+        verify(contextMock.getBundleContext(), times(1)).removeServiceListener(any(ServiceListener.class));
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectChildOfClosedRegister() throws Exception
+    {
+        contextMock.replay();
+        register.close();
+        register.createChild(Collections.<Class<?>, String> emptyMap());
+    }
+
+    @Test
+    public void shouldDropServiceUnregisteredWhileItIsGot() throws Exception
+    {
+        contextMock.replay();
+        final ClassTestedRegister service = new ClassTestedRegister(1);
+        final ServiceReference reference = contextMock.registerService(InterfaceTestedRegister01.class, service, 0);
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                contextMock.unregisterService(reference);
+                return service;
+            }
+        }).when(contextMock.getBundleContext()).getService(reference);
+        Assert.assertNull(register.getOptionalService(InterfaceTestedRegister01.class));
+        verify(contextMock.getBundleContext(), times(1)).ungetService(reference);
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2), 0);
+        assertEquals(2, register.getService(InterfaceTestedRegister01.class).action());
+    }
+
+    @Test
+    public void shouldRetryLookupWhenTrackerIsDroppedDuringOpening() throws Exception
+    {
+        register.trackerFactory = new ProviderTrackerFactory();
+        contextMock.replay();
+        final ServiceReference reference = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(1), 0);
+        ArgumentCaptor<BundleListener> listener = ArgumentCaptor.forClass(BundleListener.class);
+        verify(contextMock.getBundleContext()).addBundleListener(listener.capture());
+        final Bundle provider = mock(Bundle.class);
+        when(provider.getBundleId()).thenReturn(PROVIDER_BUNDLE_ID);
+        final BundleListener refreshListener = listener.getValue();
+        final Thread refresh = new Thread("refresh")
+        {
+            @Override
+            public void run()
+            {
+                refreshListener.bundleChanged(new BundleEvent(BundleEvent.UNRESOLVED, provider));
+            }
+        };
+        doAnswer(new Answer<ServiceReference[]>()
+        {
+            @Override
+            public ServiceReference[] answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                if (refresh.getState() == Thread.State.NEW)
+                {
+                    refresh.start(); // it closes tracker which is being opened and waits for end of opening
+                    while (refresh.getState() != Thread.State.WAITING && refresh.isAlive())
+                    {
+                        Thread.sleep(1);
+                    }
+                }
+                return new ServiceReference[] { reference };
+            }
+        }).when(contextMock.getBundleContext()).getServiceReferences(InterfaceTestedRegister01.class.getName(), null);
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+        refresh.join();
+        verify(contextMock.getBundleContext(), times(1)).removeServiceListener(any(ServiceListener.class));
+    }
+
+    @Test
+    public void shouldDropTrackersOfRefreshedBundleInChild() throws Exception
+    {
+        register.trackerFactory = new ProviderTrackerFactory();
+        contextMock.replay();
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(1), 0, tenant("a"));
+        TrackerRegister child = register.createChild(Collections.<Class<?>, String> singletonMap(
+                InterfaceTestedRegister01.class, "(tenant=a)"));
+        assertEquals(1, child.getService(InterfaceTestedRegister01.class).action());
+        fireBundleEvent(BundleEvent.UNRESOLVED, PROVIDER_BUNDLE_ID);
+        verify(contextMock.getBundleContext(), times(1)).removeServiceListener(any(ServiceListener.class));
+        assertEquals(1, child.getService(InterfaceTestedRegister01.class).action());
+        child.close();
+    }
+
+    @Test
+    public void shouldChildTrackFilteredServicesAndDelegateOthersToParent() throws Exception
+    {
+        contextMock.bindInterfaceWithInstance(InterfaceTestedRegister02.class, new ClassTestedRegister(2));
+        contextMock.replay();
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(11), 0, tenant("a"));
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(12), 10, tenant("b"));
+        assertEquals(2, register.getService(InterfaceTestedRegister02.class).action());
+        Map<Class<?>, String> filters = new HashMap<Class<?>, String>();
+        filters.put(InterfaceTestedRegister01.class, "(tenant=a)");
+        TrackerRegister child = register.createChild(filters);
+        assertEquals(11, child.getService(InterfaceTestedRegister01.class).action());
+        assertEquals(2, child.getService(InterfaceTestedRegister02.class).action());
+        child.close();
+        verify(contextMock.getBundleContext(), times(1)).removeServiceListener(any(ServiceListener.class));
+        assertEquals(2, register.getService(InterfaceTestedRegister02.class).action());
+        assertEquals(12, register.getService(InterfaceTestedRegister01.class).action());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectLookupInClosedChild() throws Exception
+    {
+        contextMock.bindInterfaceWithInstance(InterfaceTestedRegister02.class, new ClassTestedRegister(2));
+        contextMock.replay();
+        TrackerRegister child = register.createChild(Collections.<Class<?>, String> emptyMap());
+        child.close();
+        child.getService(InterfaceTestedRegister02.class);
+    }
+
+    @Test
+    public void shouldRejectRecordingOfClosedRegisterAndCloseTrace() throws Exception
+    {
+        contextMock.replay();
+        register.close();
+        final AtomicBoolean isTraceClosed = new AtomicBoolean();
+        OutputStream trace = new ByteArrayOutputStream()
+        {
+            @Override
+            public void close()
+            {
+                isTraceClosed.set(true);
+            }
+        };
+        try
+        {
+            register.startRecording(trace);
+            Assert.fail("Closed register must not record");
+        }
+        catch (IllegalStateException ex)
+        {
+            // expected
+        }
+        Assert.assertTrue(isTraceClosed.get());
+        verify(contextMock.getBundleContext(), times(1)).removeServiceListener(any(ServiceListener.class));
+    }
+
+    @Test
+    public void shouldStartRecordingAgainAfterFailedStart() throws Exception
+    {
+        contextMock.replay();
+        doThrow(new IllegalStateException("Invalid context")).when(contextMock.getBundleContext())
+                .getServiceReferences((String) null, null);
+        try
+        {
+            register.startRecording(new ByteArrayOutputStream());
+            Assert.fail("Recording must fail with invalid context");
+        }
+        catch (IllegalStateException ex)
+        {
+            // expected
+        }
+        verify(contextMock.getBundleContext(), times(1)).removeServiceListener(any(ServiceListener.class));
+        doReturn(null).when(contextMock.getBundleContext()).getServiceReferences((String) null, null);
+        register.startRecording(new ByteArrayOutputStream());
+        register.stopRecording();
+    }
+
+    @Test
+    public void shouldReplayRecordedTrace() throws Exception
+    {
+        contextMock.replay();
+        ServiceReference first = contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(1), 0);
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        register.startRecording(trace);
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+        ServiceReference second = contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2),
+                10);
+        assertEquals(2, register.getServices(InterfaceTestedRegister01.class).size());
+        contextMock.unregisterService(first);
+        contextMock.unregisterService(second);
+        Assert.assertNull(register.getOptionalService(InterfaceTestedRegister01.class));
+        register.stopRecording();
+
+        BundleContextMock replayedContextMock = new BundleContextMock();
+        replayedContextMock.replay();
+        TrackerRegister replayedRegister = new TrackerRegister(replayedContextMock.getBundleContext());
+        TraceReplayer replayer = new TraceReplayer(replayedContextMock, getClass().getClassLoader());
+        replayer.replay(new ByteArrayInputStream(trace.toByteArray()), replayedRegister, 10.0);
+        replayedRegister.close();
+        assertEquals(3, replayer.getLookups());
+        assertEquals(0, replayer.getSkippedLookups());
+        assertEquals(0, replayer.getMismatchedLookups());
+    }
+
+    @Test
+    public void shouldGetServiceEntriesWithPropertiesCapturedOnTrackingEvents() throws Exception
+    {
+        contextMock.replay();
+        ServiceReference first = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(1), 0, tenant("a"));
+        ServiceEntry<InterfaceTestedRegister01> entry = register.getServiceEntry(InterfaceTestedRegister01.class);
+        assertEquals(1, entry.getService().action());
+        assertEquals("a", entry.getProperty("tenant"));
+        contextMock.modifyService(first, 5);
+        assertEquals(5, register.getServiceEntry(InterfaceTestedRegister01.class).getProperty(Constants.SERVICE_RANKING));
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2), 10, tenant("b"));
+        assertEquals("b", register.getServiceEntry(InterfaceTestedRegister01.class).getProperty("tenant"));
+        assertEquals(2, register.getServiceEntries(InterfaceTestedRegister01.class).size());
+        contextMock.unregisterService(first);
+        assertEquals(1, register.getServiceEntries(InterfaceTestedRegister01.class).size());
+    }
+
+    @Test
+    public void shouldUpdatePinnedEntryModifiedAfterTrackerIsInflated() throws Exception
+    {
+        contextMock.replay();
+        register.setBindingPolicy(InterfaceTestedRegister01.class, BindingPolicy.STICKY);
+        ServiceReference first = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(1), 0);
+        assertEquals(1, register.getServiceEntry(InterfaceTestedRegister01.class).getService().action());
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2), -1);
+        contextMock.modifyService(first, 7);
+        ServiceEntry<InterfaceTestedRegister01> entry = register.getServiceEntry(InterfaceTestedRegister01.class);
+        assertEquals(1, entry.getService().action());
+        assertEquals(7, entry.getProperty(Constants.SERVICE_RANKING));
+    }
+
+    @Test
+    public void shouldCopyArrayPropertiesOfServiceEntry() throws Exception
+    {
+        contextMock.replay();
+        String[] names = new String[] { "a" };
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("names", names);
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(1), 0, properties);
+        ServiceEntry<InterfaceTestedRegister01> entry = register.getServiceEntry(InterfaceTestedRegister01.class);
+        names[0] = "b";
+        assertEquals("a", ((String[]) entry.getProperty("names"))[0]);
+    }
+
+    @Test
+    public void shouldPromoteStandbyServiceWhenBestServiceIsRemoved() throws Exception
+    {
+        contextMock.replay();
+        ServiceReference best = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(1), 10);
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2), 0);
+        ServiceReference standby = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(3), 5);
+        assertEquals(1, register.getService(InterfaceTestedRegister01.class).action());
+        assertEquals(0, register.getFailoverCount());
+        contextMock.unregisterService(best);
+        assertEquals(3, register.getService(InterfaceTestedRegister01.class).action());
+        assertEquals(1, register.getFailoverCount());
+        contextMock.modifyService(standby, -1);
+        assertEquals(2, register.getService(InterfaceTestedRegister01.class).action());
+        assertEquals(2, register.getServices(InterfaceTestedRegister01.class).get(0).action());
+        assertEquals(1, register.getFailoverCount());
+        register.close();
+        assertEquals(1, register.getFailoverCount());
+    }
+
+    @Test
+    public void shouldShareHubTrackersBetweenRegistersAndHideNotAssignableServices() throws Exception
+    {
+        TrackerHub hub = new TrackerHub(contextMock.getBundleContext());
+        contextMock.bindInterfaceWithInstance(TrackerHub.class, hub);
+        contextMock.replay();
+        ServiceReference visible = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(1), 0);
+        ServiceReference hidden = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(2), 10);
+        contextMock.setAssignable(hidden, false);
+        TrackerRegister first = new TrackerRegister(contextMock.getBundleContext());
+        TrackerRegister second = new TrackerRegister(contextMock.getBundleContext());
+        assertEquals(1, first.getService(InterfaceTestedRegister01.class).action());
+        assertEquals(1, second.getService(InterfaceTestedRegister01.class).action());
+        assertEquals(1, first.getServices(InterfaceTestedRegister01.class).size());
+        verify(contextMock.getBundleContext(), times(1)).addServiceListener(any(ServiceListener.class), anyString());
+        contextMock.unregisterService(visible);
+        Assert.assertNull(first.getOptionalService(InterfaceTestedRegister01.class));
+        first.close();
+        second.close();
+        hub.close();
+    }
+
+    @Test
+    public void shouldTrackServicesByOwnTrackerAfterHubIsClosed() throws Exception
+    {
+        TrackerHub hub = new TrackerHub(contextMock.getBundleContext());
+        contextMock.bindInterfaceWithInstance(TrackerHub.class, hub);
+        contextMock.replay();
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(1), 0);
+        TrackerRegister hubRegister = new TrackerRegister(contextMock.getBundleContext());
+        assertEquals(1, hubRegister.getService(InterfaceTestedRegister01.class).action());
+        hub.close();
+        assertEquals(1, hubRegister.getService(InterfaceTestedRegister01.class).action());
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2), 10);
+        assertEquals(2, hubRegister.getService(InterfaceTestedRegister01.class).action());
+        hubRegister.close();
+    }
+
+    @Test
+    public void shouldCountFailoversOfHubRegisterOnlyForVisibleServices() throws Exception
+    {
+        TrackerHub hub = new TrackerHub(contextMock.getBundleContext());
+        contextMock.bindInterfaceWithInstance(TrackerHub.class, hub);
+        contextMock.replay();
+        ServiceReference hidden = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(1), 20);
+        contextMock.setAssignable(hidden, false);
+        ServiceReference best = contextMock.registerService(InterfaceTestedRegister01.class,
+                new ClassTestedRegister(2), 10);
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(3), 0);
+        TrackerRegister first = new TrackerRegister(contextMock.getBundleContext());
+        assertEquals(2, first.getService(InterfaceTestedRegister01.class).action());
+        contextMock.unregisterService(hidden);
+        assertEquals(0, first.getFailoverCount());
+        contextMock.unregisterService(best);
+        assertEquals(1, first.getFailoverCount());
+        TrackerRegister second = new TrackerRegister(contextMock.getBundleContext());
+        assertEquals(3, second.getService(InterfaceTestedRegister01.class).action());
+        assertEquals(0, second.getFailoverCount());
+        first.close();
+        assertEquals(1, first.getFailoverCount());
+        second.close();
+        hub.close();
+    }
+
+    private static Map<String, Object> tenant(String tenant)
+    {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("tenant", tenant);
+        return result;
+    }
+
+    /**
+     * Factory of trackers which pretends that {@link InterfaceTestedRegister01} is loaded from provider bundle.
+     */
+    private static class ProviderTrackerFactory extends LazyServiceTracker.Factory
+    {
+        @Override
+        protected long getOriginBundleId(Class<?> clazz)
+        {
+            return clazz == InterfaceTestedRegister01.class ? PROVIDER_BUNDLE_ID : -1L;
+        }
+    }
+
+    private void fireBundleEvent(int type, long bundleId)
+    {
+        ArgumentCaptor<BundleListener> listener = ArgumentCaptor.forClass(BundleListener.class);
+        verify(contextMock.getBundleContext()).addBundleListener(listener.capture());
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(bundleId);
+        listener.getValue().bundleChanged(new BundleEvent(type, bundle));
+    }
 }
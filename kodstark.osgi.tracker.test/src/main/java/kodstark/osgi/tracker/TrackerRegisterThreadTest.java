@@ -13,8 +13,11 @@
 package kodstark.osgi.tracker;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -23,6 +26,9 @@ import static org.mockito.Mockito.when;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import kodstark.osgi.tracker.internal.LazyServiceTracker;
 import kodstark.osgi.tracker.internal.testsupport.ClassTestedRegister;
@@ -35,6 +41,8 @@ import kodstark.osgi.tracker.test.BundleContextMock;
 
 import org.junit.Test;
 import org.mockito.exceptions.base.MockitoAssertionError;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.osgi.framework.BundleContext;
 
 public class TrackerRegisterThreadTest
@@ -42,6 +50,8 @@ public class TrackerRegisterThreadTest
     private static final int MIN_SERVICE_NUMBER = 1;
     private static final int MAX_SERVICE_NUMBER = 5;
     private static final int MAX_THREADS = 300;
+    private static final int MAX_PARKED_THREADS = 2000;
+    private static final long PARKING_TIMEOUT_MILLIS = 10000;
     private TrackerRegister register;
     private BundleContextMock contextMock;
     private List<Thread> threads = new ArrayList<Thread>();
@@ -79,6 +89,126 @@ public class TrackerRegisterThreadTest
         assertNeverUsedTrackersAreNeverClosed();  
     }
 
+    @Test
+    public void shouldCloseTrackersOnceInParallelWithMockedLazyServiceTracker() throws Exception
+    {
+        register = new TrackerRegister(null);
+        addReplayMocksDuringCreatingLazyServiceTracker();
+        startThreadsAndWaitThemToFinish();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            register.close(executor);
+            register.close(executor);
+            register.close();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertNotExceptionsOccured();
+        assertClosedTrackersOnlyIfOpened();
+        assertUsedTrackersAreClosedOnce();
+        assertNeverUsedTrackersAreNeverClosed();
+    }
+
+    /**
+     * Threads waiting for slow opening of tracker must be parked and not blocked on monitor, so virtual threads don't
+     * pin their carrier threads.
+     */
+    @Test
+    public void shouldParkThreadsWaitingForOpeningTracker() throws Exception
+    {
+        final CountDownLatch openingEntered = new CountDownLatch(1);
+        final CountDownLatch openingReleased = new CountDownLatch(1);
+        BundleContext context = mock(BundleContext.class);
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                openingEntered.countDown();
+                openingReleased.await();
+                return null;
+            }
+        }).when(context).getServiceReferences(anyString(), anyString());
+        register = new TrackerRegister(context);
+        for (int i = 0; i < MAX_PARKED_THREADS; i++)
+        {
+            Thread thread = new Thread(createOptionalLookupRunnable());
+            thread.start();
+            threads.add(thread);
+        }
+        openingEntered.await();
+        try
+        {
+            assertAllThreadsParked();
+        }
+        finally
+        {
+            openingReleased.countDown();
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+        }
+        assertNotExceptionsOccured();
+        verify(context).getServiceReferences(anyString(), anyString());
+        register.close();
+    }
+
+    private Runnable createOptionalLookupRunnable()
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    assertNull(register.getOptionalService(InterfaceTestedRegister01.class));
+                }
+                catch (RuntimeException ex)
+                {
+                    exceptions.add(ex);
+                }
+                catch (AssertionError ex)
+                {
+                    exceptions.add(ex);
+                }
+            }
+        };
+    }
+
+    private void assertAllThreadsParked() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + PARKING_TIMEOUT_MILLIS;
+        while (true)
+        {
+            int parked = 0;
+            int blocked = 0;
+            for (Thread thread : threads)
+            {
+                Thread.State state = thread.getState();
+                if (state == Thread.State.WAITING)
+                {
+                    parked++;
+                }
+                else if (state == Thread.State.BLOCKED)
+                {
+                    blocked++;
+                }
+            }
+            if (parked == threads.size())
+            {
+                return;
+            }
+            assertTrue("Only " + parked + " threads are parked and " + blocked + " threads are blocked on monitor",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
     private void addReplayMocksDuringCreatingLazyServiceTracker()
     {
         createdTrackers = new CopyOnWriteArrayList<LazyServiceTracker<?>>();
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import kodstark.osgi.tracker.internal.testsupport.ClassTestedRegister;
+import kodstark.osgi.tracker.internal.testsupport.InterfaceTestedRegister01;
+import kodstark.osgi.tracker.test.BundleContextMock;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Footprint of opened trackers with single service. Retained heap is measured after many trackers are opened, so
+ * bytes per tracked class include tracker and all its osgi tracker structures.
+ */
+public class LazyServiceTrackerFootprintTest
+{
+    private static final int TRACKERS = 20000;
+    private static final long COMPACT_BYTES_PER_CLASS = 128;
+    private static final long FULL_BYTES_PER_CLASS = 1024;
+
+    @Test
+    public void shouldCompactTrackerFitInBudget()
+    {
+        long bytes = measureBytesPerTracker(new LazyServiceTracker.Factory(true));
+        assertTrue("Compact tracker takes " + bytes + " bytes", bytes <= COMPACT_BYTES_PER_CLASS);
+    }
+
+    @Test
+    public void shouldFullTrackerFitInBudget()
+    {
+        long bytes = measureBytesPerTracker(new LazyServiceTracker.Factory(false));
+        assertTrue("Full tracker takes " + bytes + " bytes", bytes <= FULL_BYTES_PER_CLASS);
+    }
+
+    @Test
+    public void shouldInflateCompactTrackerWhenSecondServiceAppears() throws Exception
+    {
+        BundleContextMock contextMock = new BundleContextMock();
+        contextMock.replay();
+        CompactServiceTracker<InterfaceTestedRegister01> tracker = (CompactServiceTracker<InterfaceTestedRegister01>) new LazyServiceTracker.Factory(
+                true).createLazyServiceTracker(contextMock.getBundleContext(), InterfaceTestedRegister01.class);
+        ServiceReference first = contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(1), 0);
+        tracker.openOnlyFirstTime();
+        assertEquals(1, tracker.getService().action());
+        assertFalse(tracker.isInflated());
+        contextMock.registerService(InterfaceTestedRegister01.class, new ClassTestedRegister(2), 10);
+        assertTrue(tracker.isInflated());
+        assertEquals(2, tracker.getService().action());
+        assertEquals(2, tracker.getServices().size());
+        contextMock.unregisterService(first);
+        assertEquals(1, tracker.getServices().size());
+        tracker.close();
+        assertEquals(0, tracker.getServices().size());
+    }
+
+    @Test
+    public void shouldFindServiceWhenBoundServiceIsRemovedDuringInflating() throws Exception
+    {
+        final BundleContextMock contextMock = new BundleContextMock();
+        contextMock.replay();
+        final CompactServiceTracker<InterfaceTestedRegister01> tracker = (CompactServiceTracker<InterfaceTestedRegister01>) new LazyServiceTracker.Factory(
+                true).createLazyServiceTracker(contextMock.getBundleContext(), InterfaceTestedRegister01.class);
+        final ClassTestedRegister firstService = new ClassTestedRegister(1);
+        final ServiceReference first = contextMock.registerService(InterfaceTestedRegister01.class, firstService, 0);
+        tracker.openOnlyFirstTime();
+        final ClassTestedRegister secondService = new ClassTestedRegister(2);
+        final List<Object> foundDuringInflating = new ArrayList<Object>();
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                if (first.equals(invocation.getArguments()[0]))
+                {
+                    return firstService;
+                }
+                // second service is got by full osgi tracker which is opening, bound service is removed then
+                contextMock.unregisterService(first);
+                foundDuringInflating.add(tracker.getService());
+                return secondService;
+            }
+        }).when(contextMock.getBundleContext()).getService(any(ServiceReference.class));
+        contextMock.registerService(InterfaceTestedRegister01.class, secondService, 10);
+        assertTrue(tracker.isInflated());
+        assertNotNull(foundDuringInflating.get(0));
+        assertEquals(2, tracker.getService().action());
+        assertEquals(1, tracker.getServices().size());
+        // released by compact tracker and by full osgi tracker
+        verify(contextMock.getBundleContext(), times(2)).ungetService(first);
+        tracker.close();
+    }
+
+    @Test
+    public void shouldNotLinkAgainServiceModifiedAfterRemoval() throws Exception
+    {
+        BundleContextMock contextMock = new BundleContextMock();
+        contextMock.replay();
+        LazyServiceTracker<InterfaceTestedRegister01> lazyTracker = new LazyServiceTracker.Factory(false)
+                .createLazyServiceTracker(contextMock.getBundleContext(), InterfaceTestedRegister01.class);
+        ClassTestedRegister service = new ClassTestedRegister(1);
+        ServiceReference reference = contextMock.registerService(InterfaceTestedRegister01.class, service, 0);
+        LazyServiceTracker<InterfaceTestedRegister01>.PinningServiceTracker tracker = lazyTracker
+                .createServiceTracker(contextMock.getBundleContext());
+        tracker.open();
+        assertEquals(service, tracker.getHeadService());
+        tracker.removedService(reference, service);
+        tracker.modifiedService(reference, service);
+        assertNull(tracker.getHeadService());
+        tracker.close();
+    }
+
+    private long measureBytesPerTracker(LazyServiceTracker.Factory factory)
+    {
+        BundleContext context = createSingleServiceContext();
+        Object[] trackers = new Object[TRACKERS];
+        long before = usedMemory();
+        for (int i = 0; i < TRACKERS; i++)
+        {
+            LazyServiceTracker<InterfaceTestedRegister01> tracker = factory.createLazyServiceTracker(context,
+                    InterfaceTestedRegister01.class);
+            tracker.openOnlyFirstTime();
+            trackers[i] = tracker;
+        }
+        long after = usedMemory();
+        for (Object tracker : trackers)
+        {
+            ((LazyServiceTracker<?>) tracker).close();
+        }
+        return (after - before) / TRACKERS;
+    }
+
+    private static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long result = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            result = Math.min(result, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return result;
+    }
+
+    /**
+     * Bundle context which always returns the same single service. Unlike mockito mock it doesn't record invocations
+     * so it doesn't distort measured memory.
+     */
+    private static BundleContext createSingleServiceContext()
+    {
+        final ServiceReference reference = (ServiceReference) Proxy.newProxyInstance(
+                ServiceReference.class.getClassLoader(), new Class<?>[] { ServiceReference.class }, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if (method.getName().equals("getProperty") && Constants.SERVICE_ID.equals(args[0]))
+                        {
+                            return 1L;
+                        }
+                        if (method.getName().equals("equals"))
+                        {
+                            return proxy == args[0];
+                        }
+                        if (method.getName().equals("hashCode"))
+                        {
+                            return 1;
+                        }
+                        return null;
+                    }
+                });
+        final ServiceReference[] references = new ServiceReference[] { reference };
+        final Object service = new ClassTestedRegister(1);
+        return (BundleContext) Proxy.newProxyInstance(BundleContext.class.getClassLoader(),
+                new Class<?>[] { BundleContext.class }, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if (method.getName().equals("getServiceReferences"))
+                        {
+                            return references;
+                        }
+                        if (method.getName().equals("getService"))
+                        {
+                            return service;
+                        }
+                        if (method.getReturnType() == boolean.class)
+                        {
+                            return Boolean.TRUE;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
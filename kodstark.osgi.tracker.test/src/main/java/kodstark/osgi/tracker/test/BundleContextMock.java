@@ -13,19 +13,28 @@
 package kodstark.osgi.tracker.test;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 
 /**
@@ -41,6 +50,10 @@ public class BundleContextMock
     private final Map<String, Object> mockServices;
     private final BundleContext mock;
     private List<ServiceReference> listSerRefs;
+    private final List<ServiceReferenceStubImpl> registeredRefs;
+    private final List<ServiceListenerEntry> serviceListeners;
+    private final AtomicLong nextServiceId;
+    private final Bundle bundle;
     /**
      * Debug flag. Because of classic chicken-egg problem we can't use logging service from osgi context to mock osgi
      * context.
@@ -51,6 +64,10 @@ public class BundleContextMock
     {
         mock = mock(BundleContext.class);
         mockServices = new LinkedHashMap<String, Object>();
+        registeredRefs = new CopyOnWriteArrayList<ServiceReferenceStubImpl>();
+        serviceListeners = new CopyOnWriteArrayList<ServiceListenerEntry>();
+        nextServiceId = new AtomicLong(1);
+        bundle = mock(Bundle.class);
     }
 
     public BundleContext getBundleContext()
@@ -80,6 +97,90 @@ public class BundleContextMock
         bindNameWithInstance(clazz.getName(), service);
     }    
 
+    /**
+     * Register service object with ranking after replaying mock. Service listeners added to mocked osgi context are
+     * notified about registration.
+     */
+    public ServiceReference registerService(Class<?> clazz, Object service, int ranking)
+    {
+        return registerService(clazz, service, ranking, Collections.<String, Object> emptyMap());
+    }
+
+    /**
+     * Register service object with ranking and properties after replaying mock. Service listeners added to mocked osgi
+     * context are notified about registration.
+     */
+    public ServiceReference registerService(Class<?> clazz, Object service, int ranking, Map<String, Object> properties)
+    {
+        return registerService(clazz.getName(), service, ranking, properties);
+    }
+
+    /**
+     * Register service object under service name with ranking and properties after replaying mock. Service listeners
+     * added to mocked osgi context are notified about registration.
+     */
+    public ServiceReference registerService(String name, Object service, int ranking, Map<String, Object> properties)
+    {
+        ServiceReferenceStubImpl reference = new ServiceReferenceStubImpl(name, nextServiceId.getAndIncrement(), ranking,
+                service, properties);
+        registeredRefs.add(reference);
+        fireServiceEvent(ServiceEvent.REGISTERED, reference);
+        return reference;
+    }
+
+    /**
+     * Change ranking of service previously registered by {@link #registerService(Class, Object, int)}. Service
+     * listeners added to mocked osgi context are notified about modification.
+     */
+    public void modifyService(ServiceReference reference, int ranking)
+    {
+        ((ServiceReferenceStubImpl) reference).setRanking(ranking);
+        fireServiceEvent(ServiceEvent.MODIFIED, reference);
+    }
+
+    /**
+     * Unregister service previously registered by {@link #registerService(Class, Object, int)}. Service listeners added
+     * to mocked osgi context are notified about unregistration.
+     */
+    public void unregisterService(ServiceReference reference)
+    {
+        fireServiceEvent(ServiceEvent.UNREGISTERING, reference);
+        registeredRefs.remove(reference);
+    }
+
+    /**
+     * Change if service previously registered by {@link #registerService(Class, Object, int)} is assignable to bundles.
+     * Services are assignable by default.
+     */
+    public void setAssignable(ServiceReference reference, boolean assignable)
+    {
+        ((ServiceReferenceStubImpl) reference).setAssignable(assignable);
+    }
+
+    private void fireServiceEvent(int type, ServiceReference reference)
+    {
+        ServiceEvent event = new ServiceEvent(type, reference);
+        for (ServiceListenerEntry entry : serviceListeners)
+        {
+            if (matches(entry.filter, reference))
+            {
+                entry.listener.serviceChanged(event);
+            }
+        }
+    }
+
+    private static boolean matches(String filter, ServiceReference reference)
+    {
+        try
+        {
+            return filter == null || FrameworkUtil.createFilter(filter).match(reference);
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
     /**
      * Replay bundle context mock with registered services
      */
@@ -95,6 +196,9 @@ public class BundleContextMock
         replayGetServiceReference();
         replayGetServiceReferences();
         replayGetAllServiceReferences();
+        replayServiceListeners();
+        replayCreateFilter();
+        when(mock.getBundle()).thenReturn(bundle);
     }
 
     @SuppressWarnings("unchecked")
@@ -110,6 +214,10 @@ public class BundleContextMock
                     System.out.println("[BundleContextMock] Call getService with " + Arrays.toString(args));
                 }
                 ServiceReferenceStubImpl serviceRef = (ServiceReferenceStubImpl) args[0];
+                if (serviceRef.getService() != null)
+                {
+                    return serviceRef.getService();
+                }
                 return mockServices.get(serviceRef.getName());
             }
         });
@@ -143,7 +251,13 @@ public class BundleContextMock
                     System.out.println("[BundleContextMock] Call getServiceReferences with " + Arrays.toString(args));
                 }
                 String serviceName = (String) args[0];
-                return new ServiceReference[] { new ServiceReferenceStubImpl(serviceName) };
+                String filter = (String) args[1];
+                List<ServiceReference> result = findRegisteredRefs(serviceName, filter);
+                if (serviceName != null && filter == null && (result.isEmpty() || mockServices.containsKey(serviceName)))
+                {
+                    result.add(new ServiceReferenceStubImpl(serviceName));
+                }
+                return result.toArray(new ServiceReference[result.size()]);
             }
         });
     }
@@ -160,11 +274,72 @@ public class BundleContextMock
                         {
                             System.out.println("[BundleContextMock] Call getAllServiceReferences with " + Arrays.toString(args));
                         }
-                        return listSerRefs.toArray(new ServiceReference[0]);
+                        String serviceName = (String) args[0];
+                        List<ServiceReference> result = findRegisteredRefs(serviceName, (String) args[1]);
+                        for (ServiceReference reference : listSerRefs)
+                        {
+                            if (serviceName == null || ((ServiceReferenceStubImpl) reference).getName().equals(serviceName))
+                            {
+                                result.add(reference);
+                            }
+                        }
+                        return result.isEmpty() ? null : result.toArray(new ServiceReference[result.size()]);
                     }
                 });
     }
 
+    private List<ServiceReference> findRegisteredRefs(String serviceName, String filter)
+    {
+        List<ServiceReference> result = new ArrayList<ServiceReference>();
+        for (ServiceReferenceStubImpl reference : registeredRefs)
+        {
+            if ((serviceName == null || reference.getName().equals(serviceName)) && matches(filter, reference))
+            {
+                result.add(reference);
+            }
+        }
+        return result;
+    }
+
+    private void replayCreateFilter() throws InvalidSyntaxException
+    {
+        when(mock.createFilter(any(String.class))).thenAnswer(new Answer<Filter>()
+        {
+            public Filter answer(InvocationOnMock invocation) throws InvalidSyntaxException
+            {
+                return FrameworkUtil.createFilter((String) invocation.getArguments()[0]);
+            }
+        });
+    }
+
+    private void replayServiceListeners() throws InvalidSyntaxException
+    {
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                Object[] args = invocation.getArguments();
+                serviceListeners.add(new ServiceListenerEntry((ServiceListener) args[0], (String) args[1]));
+                return null;
+            }
+        }).when(mock).addServiceListener(any(ServiceListener.class), anyString());
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                ServiceListener listener = (ServiceListener) invocation.getArguments()[0];
+                for (ServiceListenerEntry entry : serviceListeners)
+                {
+                    if (entry.listener == listener)
+                    {
+                        serviceListeners.remove(entry);
+                    }
+                }
+                return null;
+            }
+        }).when(mock).removeServiceListener(any(ServiceListener.class));
+    }
+
     private void createRefsOfAddedServices()
     {
         listSerRefs = new ArrayList<ServiceReference>();
@@ -174,13 +349,40 @@ public class BundleContextMock
         }
     }
 
+    private static class ServiceListenerEntry
+    {
+        private final ServiceListener listener;
+        private final String filter;
+
+        public ServiceListenerEntry(final ServiceListener listener, final String filter)
+        {
+            this.listener = listener;
+            this.filter = filter;
+        }
+    }
+
     private static class ServiceReferenceStubImpl implements ServiceReference
     {
         private final String name;
+        private final long id;
+        private volatile Integer ranking;
+        private final Object service;
+        private final Map<String, Object> properties;
+        private volatile boolean assignable = true;
 
         public ServiceReferenceStubImpl(final String name)
+        {
+            this(name, 0L, null, null, Collections.<String, Object> emptyMap());
+        }
+
+        public ServiceReferenceStubImpl(final String name, final long id, final Integer ranking, final Object service,
+                final Map<String, Object> properties)
         {
             this.name = name;
+            this.id = id;
+            this.ranking = ranking;
+            this.service = service;
+            this.properties = properties;
         }
 
         @Override
@@ -188,15 +390,27 @@ public class BundleContextMock
         {
             if (Constants.SERVICE_ID.equals(key))
             {
-                return 0L;
+                return id;
             }
-            return null;
+            if (Constants.SERVICE_RANKING.equals(key))
+            {
+                return ranking;
+            }
+            if (Constants.OBJECTCLASS.equals(key))
+            {
+                return new String[] { name };
+            }
+            return properties.get(key);
         }
 
         @Override
         public String[] getPropertyKeys()
         {
-            return null;
+            List<String> result = new ArrayList<String>(properties.keySet());
+            result.add(Constants.SERVICE_ID);
+            result.add(Constants.SERVICE_RANKING);
+            result.add(Constants.OBJECTCLASS);
+            return result.toArray(new String[result.size()]);
         }
 
         @Override
@@ -214,13 +428,20 @@ public class BundleContextMock
         @Override
         public boolean isAssignableTo(final Bundle bundle, final String className)
         {
-            return false;
+            return assignable;
         }
 
         @Override
         public int compareTo(final Object reference)
         {
-            return name.compareTo(name);
+            ServiceReferenceStubImpl other = (ServiceReferenceStubImpl) reference;
+            int thisRanking = ranking == null ? 0 : ranking.intValue();
+            int otherRanking = other.ranking == null ? 0 : other.ranking.intValue();
+            if (thisRanking != otherRanking)
+            {
+                return thisRanking < otherRanking ? -1 : 1;
+            }
+            return id == other.id ? 0 : id > other.id ? -1 : 1; // lower id is ranked higher
         }
 
         public String getName()
@@ -228,12 +449,28 @@ public class BundleContextMock
             return name;
         }
 
+        public Object getService()
+        {
+            return service;
+        }
+
+        public void setRanking(final Integer ranking)
+        {
+            this.ranking = ranking;
+        }
+
+        public void setAssignable(final boolean assignable)
+        {
+            this.assignable = assignable;
+        }
+
         @Override
         public int hashCode()
         {
             final int prime = 31;
             int result = 1;
             result = prime * result + (name == null ? 0 : name.hashCode());
+            result = prime * result + (int) (id ^ id >>> 32);
             return result;
         }
 
@@ -253,6 +490,10 @@ public class BundleContextMock
                 return false;
             }
             final ServiceReferenceStubImpl other = (ServiceReferenceStubImpl) obj;
+            if (id != other.id)
+            {
+                return false;
+            }
             if (name == null)
             {
                 if (other.name != null)
@@ -270,7 +511,7 @@ public class BundleContextMock
         @Override
         public String toString()
         {
-            return "[Ref " + name + "]";
+            return id == 0L ? "[Ref " + name + "]" : "[Ref " + name + " #" + id + "]";
         }
     }
 
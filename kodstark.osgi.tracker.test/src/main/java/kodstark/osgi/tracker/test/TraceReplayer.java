@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import kodstark.osgi.tracker.ExceptionNotExistedService;
+import kodstark.osgi.tracker.TrackerRegister;
+import kodstark.osgi.tracker.internal.TraceReader;
+import kodstark.osgi.tracker.internal.TraceRecorder;
+
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Driver replaying trace recorded by {@link TrackerRegister#startRecording(java.io.File)}. Service events are fed to
+ * {@link BundleContextMock} and lookups are executed on register while their latency is measured. It makes incident
+ * seen in production a repeatable benchmark.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+@SuppressWarnings("rawtypes")
+public class TraceReplayer
+{
+    private final BundleContextMock contextMock;
+    private final ClassLoader classLoader;
+    private final Map<Long, List<ServiceReference>> services = new HashMap<Long, List<ServiceReference>>();
+    private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+    private long[] latencies = new long[1024];
+    private int lookups;
+    private int skippedLookups;
+    private int mismatchedLookups;
+
+    /**
+     * @param contextMock
+     *            replayed mock of bundle context used by replayed register
+     * @param classLoader
+     *            class loader of classes used in lookups
+     */
+    public TraceReplayer(BundleContextMock contextMock, ClassLoader classLoader)
+    {
+        this.contextMock = contextMock;
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Replay trace against register.
+     *
+     * @param speedup
+     *            1 replays trace at original rate, greater values replay it faster and
+     *            {@link Double#POSITIVE_INFINITY} replays it without pauses
+     */
+    public void replay(InputStream trace, TrackerRegister register, double speedup) throws IOException,
+            InterruptedException
+    {
+        TraceReader reader = new TraceReader(trace);
+        try
+        {
+            long startNanos = System.nanoTime();
+            for (TraceReader.Record record = reader.readRecord(); record != null; record = reader.readRecord())
+            {
+                waitForRecordTime(startNanos, record.getNanos(), speedup);
+                if (record.isServiceEvent())
+                {
+                    replayServiceEvent(record);
+                }
+                else
+                {
+                    replayLookup(record, register);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void waitForRecordTime(long startNanos, long recordNanos, double speedup) throws InterruptedException
+    {
+        if (Double.isInfinite(speedup))
+        {
+            return;
+        }
+        long remaining = startNanos + (long) (recordNanos / speedup) - System.nanoTime();
+        if (remaining > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private void replayServiceEvent(TraceReader.Record record)
+    {
+        Long serviceId = record.getServiceId();
+        switch (record.getType())
+        {
+            case ServiceEvent.REGISTERED:
+                if (!services.containsKey(serviceId)) // registered before recording started and recorded twice
+                {
+                    List<ServiceReference> references = new ArrayList<ServiceReference>();
+                    for (String name : record.getClassNames())
+                    {
+                        references.add(contextMock.registerService(name, new Object(), record.getRanking(),
+                                Collections.<String, Object> emptyMap()));
+                    }
+                    services.put(serviceId, references);
+                }
+                break;
+            case ServiceEvent.MODIFIED:
+                if (services.containsKey(serviceId))
+                {
+                    for (ServiceReference reference : services.get(serviceId))
+                    {
+                        contextMock.modifyService(reference, record.getRanking());
+                    }
+                }
+                break;
+            default: // service is unregistered or doesn't match any more
+                List<ServiceReference> references = services.remove(serviceId);
+                if (references != null)
+                {
+                    for (ServiceReference reference : references)
+                    {
+                        contextMock.unregisterService(reference);
+                    }
+                }
+        }
+    }
+
+    private void replayLookup(TraceReader.Record record, TrackerRegister register)
+    {
+        Class<?> clazz = loadClass(record.getClassNames()[0]);
+        if (clazz == null)
+        {
+            skippedLookups++;
+            return;
+        }
+        long startNanos = System.nanoTime();
+        boolean found;
+        switch (record.getType())
+        {
+            case TraceRecorder.LOOKUP_GET_SERVICE:
+                found = getService(register, clazz);
+                break;
+            case TraceRecorder.LOOKUP_GET_OPTIONAL_SERVICE:
+                found = register.getOptionalService(clazz) != null;
+                break;
+            case TraceRecorder.LOOKUP_GET_SERVICES:
+                found = !register.getServices(clazz).isEmpty();
+                break;
+            default:
+                skippedLookups++;
+                return;
+        }
+        addLatency(System.nanoTime() - startNanos);
+        if (found != record.isFound())
+        {
+            mismatchedLookups++;
+        }
+    }
+
+    private static boolean getService(TrackerRegister register, Class<?> clazz)
+    {
+        try
+        {
+            register.getService(clazz);
+            return true;
+        }
+        catch (ExceptionNotExistedService ex)
+        {
+            return false;
+        }
+    }
+
+    private Class<?> loadClass(String name)
+    {
+        if (classes.containsKey(name))
+        {
+            return classes.get(name);
+        }
+        Class<?> result;
+        try
+        {
+            result = Class.forName(name, false, classLoader);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            result = null;
+        }
+        classes.put(name, result);
+        return result;
+    }
+
+    private void addLatency(long nanos)
+    {
+        if (lookups == latencies.length)
+        {
+            latencies = Arrays.copyOf(latencies, lookups * 2);
+        }
+        latencies[lookups++] = nanos;
+    }
+
+    /**
+     * Get number of replayed lookups.
+     */
+    public int getLookups()
+    {
+        return lookups;
+    }
+
+    /**
+     * Get number of lookups which couldn't be replayed because their class is not available.
+     */
+    public int getSkippedLookups()
+    {
+        return skippedLookups;
+    }
+
+    /**
+     * Get number of replayed lookups which found service when recorded lookup didn't or vice versa.
+     */
+    public int getMismatchedLookups()
+    {
+        return mismatchedLookups;
+    }
+
+    public long getMaxLatencyNanos()
+    {
+        return getLatencyPercentileNanos(100);
+    }
+
+    /**
+     * Get latency of replayed lookups in given percentile, e.g. 99.9.
+     */
+    public long getLatencyPercentileNanos(double percentile)
+    {
+        if (lookups == 0)
+        {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, lookups);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * lookups) - 1;
+        return sorted[Math.max(0, Math.min(index, lookups - 1))];
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker;
+
+/**
+ * Policy of binding service returned by {@link TrackerRegister#getService(Class)} and
+ * {@link TrackerRegister#getOptionalService(Class)}.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+public enum BindingPolicy
+{
+    /**
+     * Always return the best ranked service - service with higher ranking registered later replaces the current one.
+     * It is default policy.
+     */
+    DYNAMIC_GREEDY,
+
+    /**
+     * Once resolved service is pinned and returned until it is unregistered. Services registered later are ignored
+     * even if they have higher ranking.
+     */
+    STICKY
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker;
+
+import java.util.Map;
+
+/**
+ * Tracked service together with its properties. Properties are copied from service reference once when service is
+ * tracked or modified, so reading them doesn't call framework. Modification of service creates new entry.
+ * <p>
+ * Map of properties is unmodifiable, but its values are not. Arrays are copied from framework, but one copy is shared
+ * by all callers of entry, so arrays and collections of properties must not be modified.
+ *
+ * @param <T>
+ *            type of service.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+public final class ServiceEntry<T>
+{
+    private final T service;
+    private final Map<String, Object> properties;
+
+    /**
+     * @param properties
+     *            unmodifiable map of properties
+     */
+    public ServiceEntry(T service, Map<String, Object> properties)
+    {
+        this.service = service;
+        this.properties = properties;
+    }
+
+    public T getService()
+    {
+        return service;
+    }
+
+    /**
+     * Get unmodifiable map of service properties. Keys are case sensitive as they were registered. Values must not be
+     * modified.
+     */
+    public Map<String, Object> getProperties()
+    {
+        return properties;
+    }
+
+    /**
+     * Get property of service or null when service doesn't have it.
+     */
+    public Object getProperty(String key)
+    {
+        return properties.get(key);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[Entry " + service + " " + properties + "]";
+    }
+}
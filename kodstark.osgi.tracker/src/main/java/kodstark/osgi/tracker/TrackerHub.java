@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import kodstark.osgi.tracker.internal.HubServiceTracker;
+import kodstark.osgi.tracker.internal.LazyServiceTracker;
+import kodstark.osgi.tracker.internal.SharedServiceTracker;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Framework-wide hub of trackers. It holds single tracker per service class for the whole framework, so services of
+ * class are not tracked again by register of every bundle. Register created when hub is registered as service is a
+ * view over trackers of hub - it only checks if tracked services are assignable to its bundle.
+ * <p>
+ * Hub is registered by tracker bundle when framework property {@link #ENABLED_PROPERTY} is true. Service objects are
+ * got by hub bundle so all registers see the same objects. Hub is not suitable for service factories which create
+ * object per using bundle.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+public class TrackerHub
+{
+    public static final String ENABLED_PROPERTY = "kodstark.osgi.tracker.hub";
+    private final BundleContext context;
+    private final ConcurrentMap<String, HubServiceTracker<?>> trackers = new ConcurrentHashMap<String, HubServiceTracker<?>>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param context
+     *            context of bundle which tracks services for whole framework
+     */
+    public TrackerHub(BundleContext context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * Create factory of trackers of register of given bundle. Trackers without filter are views over trackers of hub.
+     * Own trackers are created when hub is closed.
+     */
+    LazyServiceTracker.Factory createFactory(Bundle bundle)
+    {
+        return new ViewFactory(bundle);
+    }
+
+    /**
+     * Get shared tracker of class or null when hub is closed.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> HubServiceTracker<T> getTracker(Class<T> clazz)
+    {
+        if (closed.get())
+        {
+            return null;
+        }
+        final String key = clazz.getName();
+        HubServiceTracker<T> tracker = (HubServiceTracker<T>) trackers.get(key);
+        if (tracker == null)
+        {
+            tracker = new HubServiceTracker<T>(context, key);
+            HubServiceTracker<T> putResult = (HubServiceTracker<T>) trackers.putIfAbsent(key, tracker);
+            if (putResult != null)
+            {
+                tracker = putResult; // replace on failed race condition
+            }
+            if (closed.get())
+            {
+                tracker.close(); // hub closed during creating tracker so it could miss it
+                return null;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Close shared trackers. Views created so far are closed with them, so registers replace them by own trackers on
+     * next lookup. Next calls do nothing.
+     */
+    public void close()
+    {
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        for (HubServiceTracker<?> tracker : trackers.values())
+        {
+            tracker.close();
+        }
+        trackers.clear();
+    }
+
+    private class ViewFactory extends LazyServiceTracker.Factory
+    {
+        private final Bundle bundle;
+
+        ViewFactory(Bundle bundle)
+        {
+            this.bundle = bundle;
+        }
+
+        @Override
+        public <T> LazyServiceTracker<T> createLazyServiceTracker(BundleContext context, Class<T> clazz, String filter)
+        {
+            HubServiceTracker<T> shared = filter == null ? getTracker(clazz) : null;
+            if (shared == null)
+            {
+                return super.createLazyServiceTracker(context, clazz, filter);
+            }
+            return new SharedServiceTracker<T>(shared, bundle, getOriginBundleId(clazz));
+        }
+    }
+}
@@ -12,14 +12,37 @@
  */
 package kodstark.osgi.tracker;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import kodstark.osgi.tracker.internal.LazyServiceTracker;
+import kodstark.osgi.tracker.internal.TraceRecorder;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
 
 /**
  * Register for getting services on demand.
@@ -30,6 +53,15 @@ import org.osgi.framework.BundleContext;
  * needs be closed.
  * <p>
  * It is alternative approach to using osgi tracker with white board pattern.
+ * <p>
+ * Trackers are stored under class name so register doesn't keep references to classes and their class loaders. Trackers
+ * of classes coming from bundle which is refreshed or uninstalled are closed and dropped - they are opened again on
+ * next query.
+ * <p>
+ * Short-lived scopes can use child register created by {@link #createChild(Map)}. Child register shares trackers of
+ * its parent and opens only own trackers of services matching scope filters.
+ * <p>
+ * When {@link TrackerHub} is registered then register is a view over trackers of hub shared by all bundles.
  * 
  * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
  * @since 14 Sep, 2009
@@ -37,36 +69,169 @@ import org.osgi.framework.BundleContext;
 public class TrackerRegister
 {
     LazyServiceTracker.Factory trackerFactory;
-    private final ConcurrentMap<Class<?>, LazyServiceTracker<?>> trackers;
+    private final ConcurrentMap<String, LazyServiceTracker<?>> trackers;
+    private final ConcurrentMap<String, BindingPolicy> bindingPolicies;
     private final BundleContext bundleContext;
+    private final RefreshListener refreshListener;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicReference<TraceRecorder> traceRecorder = new AtomicReference<TraceRecorder>();
+    /**
+     * Failovers of trackers which were closed and dropped.
+     */
+    private final AtomicLong droppedFailoverCount = new AtomicLong();
+    /**
+     * Parent register for child register or null.
+     */
+    private final TrackerRegister parent;
+    /**
+     * Filters of child register under class name. It is empty for register without parent.
+     */
+    private final Map<String, String> filters;
+    /**
+     * Open children of register. Their own trackers are dropped together with trackers of register after refresh of
+     * bundles, because only register without parent listens for it.
+     */
+    private final Set<TrackerRegister> children = Collections
+            .newSetFromMap(new ConcurrentHashMap<TrackerRegister, Boolean>());
+    /**
+     * Reference of hub used by register or null.
+     */
+    @SuppressWarnings("rawtypes")
+    private final ServiceReference hubReference;
 
+    @SuppressWarnings("rawtypes")
     public TrackerRegister(BundleContext context)
     {
         this.bundleContext = context;
-        trackerFactory = new LazyServiceTracker.Factory();
-        trackers = new ConcurrentHashMap<Class<?>, LazyServiceTracker<?>>();
+        ServiceReference reference = context == null ? null : context.getServiceReference(TrackerHub.class.getName());
+        TrackerHub hub = reference == null ? null : getHub(context, reference);
+        hubReference = hub == null ? null : reference;
+        trackerFactory = hub == null ? new LazyServiceTracker.Factory() : hub.createFactory(context.getBundle());
+        trackers = new ConcurrentHashMap<String, LazyServiceTracker<?>>();
+        bindingPolicies = new ConcurrentHashMap<String, BindingPolicy>();
+        parent = null;
+        filters = Collections.emptyMap();
+        if (context != null)
+        {
+            refreshListener = new RefreshListener();
+            context.addBundleListener(refreshListener);
+            context.addFrameworkListener(refreshListener);
+        }
+        else
+        {
+            refreshListener = null;
+        }
+    }
+
+    private TrackerRegister(TrackerRegister parent, Map<String, String> filters)
+    {
+        this.bundleContext = parent.bundleContext;
+        trackerFactory = parent.trackerFactory;
+        trackers = new ConcurrentHashMap<String, LazyServiceTracker<?>>();
+        bindingPolicies = new ConcurrentHashMap<String, BindingPolicy>();
+        refreshListener = null;
+        hubReference = null;
+        this.parent = parent;
+        this.filters = filters;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static TrackerHub getHub(BundleContext context, ServiceReference reference)
+    {
+        Object service = context.getService(reference);
+        if (service instanceof TrackerHub)
+        {
+            return (TrackerHub) service;
+        }
+        if (service != null)
+        {
+            context.ungetService(reference); // hub from other class space
+        }
+        return null;
     }
 
     /**
-     * Get service from bundle context according to full class name or throw exception
-     * {@link ExceptionNotExistedService} when it doesn't exist.
+     * Create child register for short-lived scope. Services of classes from given map are tracked by own trackers of
+     * child and they must match filter of class. Queries for other classes are delegated to this register so they use
+     * already opened trackers.
+     * <p>
+     * Closing child closes only own trackers. Child must be closed before this register.
+     * 
+     * @param filters
+     *            osgi filters which services of class must match in addition to class
+     * @throws IllegalArgumentException
+     *             when filter has invalid syntax
+     * @throws IllegalStateException
+     *             when register is closed
      */
-    @SuppressWarnings("unchecked")
-    public <T> T getService(Class<T> clazz)
+    public TrackerRegister createChild(Map<Class<?>, String> filters)
     {
-        LazyServiceTracker<T> tracker = (LazyServiceTracker<T>) trackers.get(clazz);
-        if (tracker == null)
+        if (closed.get())
+        {
+            throw new IllegalStateException("Register is closed");
+        }
+        Map<String, String> childFilters = new HashMap<String, String>();
+        for (Map.Entry<Class<?>, String> entry : filters.entrySet())
         {
-            tracker = trackerFactory.createLazyServiceTracker(bundleContext, clazz);
-            LazyServiceTracker<?> putResult0 = trackers.putIfAbsent(clazz, tracker);
-            LazyServiceTracker<T> putResult = (LazyServiceTracker<T>) putResult0;
-            if (putResult != null)
+            try
+            {
+                bundleContext.createFilter(entry.getValue());
+            }
+            catch (InvalidSyntaxException ex)
             {
-                tracker = putResult; // replace on failed race condition
+                throw new IllegalArgumentException("Invalid filter " + entry.getValue(), ex);
             }
+            childFilters.put(entry.getKey().getName(), entry.getValue());
+        }
+        TrackerRegister child = new TrackerRegister(this, childFilters);
+        children.add(child);
+        if (closed.get())
+        {
+            child.close(); // register closed during creating child so it could miss it
+            throw new IllegalStateException("Register is closed");
+        }
+        return child;
+    }
+
+    /**
+     * Set policy of binding services of given class. By default it is {@link BindingPolicy#DYNAMIC_GREEDY}. Child
+     * register applies policy only to classes tracked by own trackers.
+     */
+    public void setBindingPolicy(Class<?> clazz, BindingPolicy policy)
+    {
+        bindingPolicies.put(clazz.getName(), policy);
+        LazyServiceTracker<?> tracker = trackers.get(clazz.getName());
+        if (tracker != null)
+        {
+            tracker.setBindingPolicy(policy);
         }
-        tracker.openOnlyFirstTime();
+    }
+
+    /**
+     * Get policy of binding services of given class.
+     */
+    public BindingPolicy getBindingPolicy(Class<?> clazz)
+    {
+        BindingPolicy result = bindingPolicies.get(clazz.getName());
+        return result == null ? BindingPolicy.DYNAMIC_GREEDY : result;
+    }
+
+    /**
+     * Get service from bundle context according to full class name or throw exception
+     * {@link ExceptionNotExistedService} when it doesn't exist.
+     * 
+     * @throws IllegalStateException
+     *             when register is closed
+     */
+    public <T> T getService(Class<T> clazz)
+    {
+        LazyServiceTracker<T> tracker = getOpenedTracker(clazz);
         final T result = tracker.getService();
+        TraceRecorder recorder = traceRecorder.get();
+        if (recorder != null)
+        {
+            recorder.recordLookup(TraceRecorder.LOOKUP_GET_SERVICE, tracker.getClazz(), result != null);
+        }
         if (result == null)
         {
             throw new ExceptionNotExistedService(tracker.getClazz());
@@ -76,55 +241,480 @@ public class TrackerRegister
 
     /**
      * Get service from bundle context according to full class name or return null when it doesn't exist.
+     * 
+     * @throws IllegalStateException
+     *             when register is closed
      */
-    @SuppressWarnings("unchecked")
     public <T> T getOptionalService(Class<T> clazz)
     {
-        LazyServiceTracker<T> tracker = (LazyServiceTracker<T>) trackers.get(clazz);
-        if (tracker == null)
+        LazyServiceTracker<T> tracker = getOpenedTracker(clazz);
+        final T result = tracker.getService();
+        TraceRecorder recorder = traceRecorder.get();
+        if (recorder != null)
         {
-            tracker = trackerFactory.createLazyServiceTracker(bundleContext, clazz);
-            LazyServiceTracker<?> putResult0 = trackers.putIfAbsent(clazz, tracker);
-            LazyServiceTracker<T> putResult = (LazyServiceTracker<T>) putResult0;
-            if (putResult != null)
+            recorder.recordLookup(TraceRecorder.LOOKUP_GET_OPTIONAL_SERVICE, tracker.getClazz(), result != null);
+        }
+        return result;
+    }
+
+    /**
+     * Get services from bundle context according to full class name and always return list. List is unmodifiable and
+     * it is shared by all callers until tracked services change, so it must be copied before sorting or other
+     * modification.
+     * 
+     * @throws IllegalStateException
+     *             when register is closed
+     */
+    public <T> List<T> getServices(Class<T> clazz)
+    {
+        LazyServiceTracker<T> tracker = getOpenedTracker(clazz);
+        final List<T> result = tracker.getServices();
+        TraceRecorder recorder = traceRecorder.get();
+        if (recorder != null)
+        {
+            recorder.recordLookup(TraceRecorder.LOOKUP_GET_SERVICES, tracker.getClazz(), !result.isEmpty());
+        }
+        return result;
+    }
+
+    /**
+     * Get service together with its properties or throw exception {@link ExceptionNotExistedService} when it doesn't
+     * exist. Properties are captured when service is tracked or modified, so reading them doesn't call framework.
+     * 
+     * @throws IllegalStateException
+     *             when register is closed
+     */
+    public <T> ServiceEntry<T> getServiceEntry(Class<T> clazz)
+    {
+        LazyServiceTracker<T> tracker = getOpenedTracker(clazz);
+        final ServiceEntry<T> result = tracker.getServiceEntry();
+        TraceRecorder recorder = traceRecorder.get();
+        if (recorder != null)
+        {
+            recorder.recordLookup(TraceRecorder.LOOKUP_GET_SERVICE, tracker.getClazz(), result != null);
+        }
+        if (result == null)
+        {
+            throw new ExceptionNotExistedService(tracker.getClazz());
+        }
+        return result;
+    }
+
+    /**
+     * Get services together with their properties and always return list. Like list of {@link #getServices(Class)} it
+     * is unmodifiable and shared by all callers.
+     * 
+     * @throws IllegalStateException
+     *             when register is closed
+     */
+    public <T> List<ServiceEntry<T>> getServiceEntries(Class<T> clazz)
+    {
+        LazyServiceTracker<T> tracker = getOpenedTracker(clazz);
+        final List<ServiceEntry<T>> result = tracker.getServiceEntries();
+        TraceRecorder recorder = traceRecorder.get();
+        if (recorder != null)
+        {
+            recorder.recordLookup(TraceRecorder.LOOKUP_GET_SERVICES, tracker.getClazz(), !result.isEmpty());
+        }
+        return result;
+    }
+
+    /**
+     * Start recording service events and lookups of this register into binary trace file. Trace can be replayed
+     * against mocked bundle context to reproduce latency of register.
+     * 
+     * @throws IllegalStateException
+     *             when register is already recording
+     */
+    public void startRecording(File file) throws IOException
+    {
+        startRecording(new FileOutputStream(file));
+    }
+
+    /**
+     * Start recording service events and lookups of this register into binary trace. Services registered before are
+     * recorded as registered at the beginning of trace. Stream is closed by {@link #stopRecording()}.
+     * 
+     * @throws IllegalStateException
+     *             when register is already recording, it is closed or it doesn't have bundle context. Stream is closed
+     *             when recording doesn't start.
+     */
+    @SuppressWarnings("rawtypes")
+    public void startRecording(OutputStream out) throws IOException
+    {
+        TraceRecorder recorder = new TraceRecorder(out);
+        if (!traceRecorder.compareAndSet(null, recorder))
+        {
+            recorder.close();
+            throw new IllegalStateException("Register is already recording");
+        }
+        boolean isStarted = false;
+        try
+        {
+            if (bundleContext == null)
+            {
+                throw new IllegalStateException("Register without bundle context can't record");
+            }
+            bundleContext.addServiceListener(recorder, null);
+            if (closed.get())
+            {
+                throw new IllegalStateException("Register is closed"); // close could miss recorder
+            }
+            ServiceReference[] references = bundleContext.getServiceReferences((String) null, null);
+            if (references != null)
             {
-                tracker = putResult; // replace on failed race condition
+                for (ServiceReference reference : references)
+                {
+                    recorder.recordRegistered(reference);
+                }
             }
+            isStarted = true;
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+        finally
+        {
+            if (!isStarted)
+            {
+                abortRecording(recorder);
+            }
+        }
+    }
+
+    private void abortRecording(TraceRecorder recorder)
+    {
+        traceRecorder.compareAndSet(recorder, null);
+        if (bundleContext != null)
+        {
+            try
+            {
+                bundleContext.removeServiceListener(recorder);
+            }
+            catch (IllegalStateException ex)
+            {
+                // bundle context is already invalid
+            }
+        }
+        try
+        {
+            recorder.close();
+        }
+        catch (IOException ex)
+        {
+            // trace is dropped, failure of starting is reported instead
         }
-        tracker.openOnlyFirstTime();
-        return tracker.getService();
     }
 
     /**
-     * Get services from bundle context according to full class name and always return list.
+     * Stop recording and close trace. It does nothing when register is not recording.
+     * 
+     * @throws IOException
+     *             when trace couldn't be written
      */
+    public void stopRecording() throws IOException
+    {
+        TraceRecorder recorder = traceRecorder.getAndSet(null);
+        if (recorder != null)
+        {
+            try
+            {
+                bundleContext.removeServiceListener(recorder);
+            }
+            catch (IllegalStateException ex)
+            {
+                // bundle context is already invalid
+            }
+            recorder.close();
+        }
+    }
+
     @SuppressWarnings("unchecked")
-    public <T> List<T> getServices(Class<T> clazz)
+    private <T> LazyServiceTracker<T> getOpenedTracker(Class<T> clazz)
+    {
+        if (closed.get())
+        {
+            throw new IllegalStateException("Register is closed");
+        }
+        final String key = clazz.getName();
+        if (parent != null && !filters.containsKey(key))
+        {
+            return parent.getOpenedTracker(clazz);
+        }
+        while (true)
+        {
+            LazyServiceTracker<T> tracker = (LazyServiceTracker<T>) trackers.get(key);
+            if (tracker == null)
+            {
+                tracker = createTracker(clazz, key);
+                BindingPolicy policy = bindingPolicies.get(key);
+                if (policy != null)
+                {
+                    tracker.setBindingPolicy(policy);
+                }
+                LazyServiceTracker<?> putResult0 = trackers.putIfAbsent(key, tracker);
+                LazyServiceTracker<T> putResult = (LazyServiceTracker<T>) putResult0;
+                if (putResult != null)
+                {
+                    tracker = putResult; // replace on failed race condition
+                }
+                else if (bindingPolicies.get(key) != policy)
+                {
+                    tracker.setBindingPolicy(getBindingPolicy(clazz)); // policy changed during creating tracker
+                }
+                if (closed.get())
+                {
+                    tracker.close(); // register closed during creating tracker so it could miss it
+                    throw new IllegalStateException("Register is closed");
+                }
+            }
+            tracker.openOnlyFirstTime();
+            if (!tracker.isClosed())
+            {
+                return tracker;
+            }
+            // tracker was dropped after refresh of its bundle in the meantime or it is view of closed hub
+            if (closed.get())
+            {
+                throw new IllegalStateException("Register is closed");
+            }
+            if (trackers.remove(key, tracker))
+            {
+                tracker.close();
+                droppedFailoverCount.addAndGet(tracker.getFailoverCount());
+            }
+        }
+    }
+
+    private <T> LazyServiceTracker<T> createTracker(Class<T> clazz, String key)
+    {
+        String filter = filters.get(key);
+        if (filter == null)
+        {
+            return trackerFactory.createLazyServiceTracker(bundleContext, clazz);
+        }
+        return trackerFactory.createLazyServiceTracker(bundleContext, clazz, filter);
+    }
+
+    /**
+     * Get how many times removed best service of any class was replaced by standby service of the same class without
+     * gap. Child register counts only own trackers.
+     */
+    public long getFailoverCount()
+    {
+        long result = droppedFailoverCount.get();
+        for (LazyServiceTracker<?> tracker : trackers.values())
+        {
+            result += tracker.getFailoverCount();
+        }
+        return result;
+    }
+
+    /**
+     * Close and drop trackers of classes loaded from given bundle. Trackers of children are dropped too.
+     */
+    void closeTrackersOfBundle(long bundleId)
+    {
+        for (Map.Entry<String, LazyServiceTracker<?>> entry : trackers.entrySet())
+        {
+            LazyServiceTracker<?> tracker = entry.getValue();
+            if (tracker.getOriginBundleId() == bundleId && trackers.remove(entry.getKey(), tracker))
+            {
+                tracker.close();
+                droppedFailoverCount.addAndGet(tracker.getFailoverCount());
+            }
+        }
+        for (TrackerRegister child : children)
+        {
+            child.closeTrackersOfBundle(bundleId);
+        }
+    }
+
+    /**
+     * Close and drop trackers of classes loaded from bundles which are not resolved any more. Trackers of children are
+     * dropped too.
+     */
+    void closeTrackersOfUnresolvedBundles()
     {
-        LazyServiceTracker<T> tracker = (LazyServiceTracker<T>) trackers.get(clazz);
-        if (tracker == null)
+        for (Map.Entry<String, LazyServiceTracker<?>> entry : trackers.entrySet())
         {
-            tracker = trackerFactory.createLazyServiceTracker(bundleContext, clazz);
-            LazyServiceTracker<?> putResult0 = trackers.putIfAbsent(clazz, tracker);
-            LazyServiceTracker<T> putResult = (LazyServiceTracker<T>) putResult0;
-            if (putResult != null)
+            LazyServiceTracker<?> tracker = entry.getValue();
+            long bundleId = tracker.getOriginBundleId();
+            if (bundleId > 0 && !isResolved(bundleContext.getBundle(bundleId))
+                    && trackers.remove(entry.getKey(), tracker))
             {
-                tracker = putResult; // replace on failed race condition
+                tracker.close();
+                droppedFailoverCount.addAndGet(tracker.getFailoverCount());
             }
         }
-        tracker.openOnlyFirstTime();
-        return tracker.getServices();
+        for (TrackerRegister child : children)
+        {
+            child.closeTrackersOfUnresolvedBundles();
+        }
+    }
+
+    private static boolean isResolved(Bundle bundle)
+    {
+        return bundle != null && (bundle.getState() & (Bundle.UNINSTALLED | Bundle.INSTALLED)) == 0;
     }
 
     /**
-     * Close register. Normally invoked during closing activator.
+     * Close register. Normally invoked during closing activator. Next calls do nothing.
      */
     public void close()
     {
+        close(null);
+    }
+
+    /**
+     * Close register and its trackers in parallel on given executor. Method returns when all trackers are closed. When
+     * executor is null then trackers are closed in current thread. Next calls do nothing.
+     */
+    public void close(Executor executor)
+    {
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        if (parent != null)
+        {
+            parent.children.remove(this);
+        }
+        try
+        {
+            stopRecording();
+        }
+        catch (IOException ex)
+        {
+            // trace stays incomplete, closing register can't fail because of it
+        }
+        if (refreshListener != null)
+        {
+            try
+            {
+                bundleContext.removeBundleListener(refreshListener);
+                bundleContext.removeFrameworkListener(refreshListener);
+            }
+            catch (IllegalStateException ex)
+            {
+                // bundle context is already invalid
+            }
+        }
         Collection<LazyServiceTracker<?>> trackersValues = trackers.values();
+        if (executor == null)
+        {
+            for (LazyServiceTracker<?> tracker : trackersValues)
+            {
+                tracker.close();
+            }
+        }
+        else
+        {
+            closeTrackers(executor, trackersValues);
+        }
         for (LazyServiceTracker<?> tracker : trackersValues)
         {
-            tracker.close();
+            droppedFailoverCount.addAndGet(tracker.getFailoverCount());
+        }
+        trackers.clear();
+        if (hubReference != null)
+        {
+            try
+            {
+                bundleContext.ungetService(hubReference);
+            }
+            catch (IllegalStateException ex)
+            {
+                // bundle context is already invalid
+            }
+        }
+    }
+
+    private void closeTrackers(Executor executor, Collection<LazyServiceTracker<?>> trackersValues)
+    {
+        List<LazyServiceTracker<?>> closedTrackers = new ArrayList<LazyServiceTracker<?>>(trackersValues);
+        final CountDownLatch latch = new CountDownLatch(closedTrackers.size());
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        for (final LazyServiceTracker<?> tracker : closedTrackers)
+        {
+            Runnable closing = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        tracker.close();
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        failure.compareAndSet(null, ex);
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            };
+            try
+            {
+                executor.execute(closing);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                closing.run();
+            }
+        }
+        awaitUninterruptibly(latch);
+        if (failure.get() != null)
+        {
+            throw failure.get();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Listener dropping trackers of classes from refreshed and uninstalled bundles.
+     */
+    private class RefreshListener implements BundleListener, FrameworkListener
+    {
+        @Override
+        public void bundleChanged(BundleEvent event)
+        {
+            if (event.getType() == BundleEvent.UNRESOLVED || event.getType() == BundleEvent.UNINSTALLED)
+            {
+                closeTrackersOfBundle(event.getBundle().getBundleId());
+            }
+        }
+
+        @Override
+        public void frameworkEvent(FrameworkEvent event)
+        {
+            if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED)
+            {
+                closeTrackersOfUnresolvedBundles();
+            }
         }
     }
 }
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker.internal;
+
+import kodstark.osgi.tracker.TrackerHub;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Activator of tracker bundle. It registers {@link TrackerHub} when framework property
+ * {@link TrackerHub#ENABLED_PROPERTY} is true, otherwise it does nothing.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+public class Activator implements BundleActivator
+{
+    private TrackerHub hub;
+    @SuppressWarnings("rawtypes")
+    private ServiceRegistration registration;
+
+    @Override
+    public void start(BundleContext context)
+    {
+        if (Boolean.parseBoolean(context.getProperty(TrackerHub.ENABLED_PROPERTY)))
+        {
+            hub = new TrackerHub(context);
+            registration = context.registerService(TrackerHub.class.getName(), hub, null);
+        }
+    }
+
+    @Override
+    public void stop(BundleContext context)
+    {
+        if (hub != null)
+        {
+            registration.unregister();
+            hub.close();
+            registration = null;
+            hub = null;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker.internal;
+
+import kodstark.osgi.tracker.ServiceEntry;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Tracker for single service. Tracked reference and entry of service are kept in own fields and full osgi tracker is created
+ * only when second service appears. Most of tracked classes have single service so it saves memory of osgi tracker
+ * structures.
+ *
+ * @param <T>
+ *            type of tracking service.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+@SuppressWarnings("rawtypes")
+class CompactServiceTracker<T> extends LazyServiceTracker<T> implements ServiceListener
+{
+    private static final int IGNORE = 0;
+    private static final int BIND = 1;
+    private static final int INFLATE = 2;
+    private final BundleContext context;
+    private volatile ServiceReference reference;
+    private volatile ServiceEntry<Object> entry;
+    /**
+     * Candidate which service is being got outside of lock. Untracking clears it, so bind drops removed candidate.
+     */
+    private ServiceReference adding;
+    /**
+     * Full osgi tracker used after second service appeared. It stays after closing so its failovers are still counted.
+     */
+    private volatile PinningServiceTracker inflated;
+    /**
+     * Changed under lock after own fields change.
+     */
+    private volatile int trackingCount;
+    private boolean inflating;
+    /**
+     * Bound service was removed during inflating. Own fields stay until full osgi tracker replaces them.
+     */
+    private boolean removedDuringInflating;
+    private boolean closed;
+
+    CompactServiceTracker(final BundleContext context, final String clazz, final String filter,
+            final long originBundleId)
+    {
+        super(clazz, filter, originBundleId);
+        this.context = context;
+    }
+
+    @Override
+    void openTracker()
+    {
+        try
+        {
+            context.addServiceListener(this, getListenerFilter());
+            ServiceReference[] references = context.getServiceReferences(getClazz(), getFilter());
+            if (references != null)
+            {
+                for (ServiceReference candidate : references)
+                {
+                    track(candidate);
+                }
+            }
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            throw new RuntimeException("unexpected InvalidSyntaxException: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void serviceChanged(ServiceEvent event)
+    {
+        switch (event.getType())
+        {
+            case ServiceEvent.REGISTERED:
+                track(event.getServiceReference());
+                break;
+            case ServiceEvent.MODIFIED:
+                if (!modify(event.getServiceReference()))
+                {
+                    track(event.getServiceReference());
+                }
+                break;
+            case ServiceEvent.MODIFIED_ENDMATCH:
+            case ServiceEvent.UNREGISTERING:
+                untrack(event.getServiceReference());
+                break;
+        }
+    }
+
+    /**
+     * Bind service or inflate when other service is already bound. Framework is never called inside synchronized block.
+     */
+    private void track(ServiceReference candidate)
+    {
+        switch (checkCandidate(candidate))
+        {
+            case BIND:
+                bind(candidate);
+                break;
+            case INFLATE:
+                inflate();
+                break;
+        }
+    }
+
+    private synchronized int checkCandidate(ServiceReference candidate)
+    {
+        if (closed || inflating || candidate.equals(reference) || candidate.equals(adding))
+        {
+            return IGNORE;
+        }
+        if (reference == null && adding == null)
+        {
+            adding = candidate;
+            return BIND;
+        }
+        inflating = true; // other service is bound or being bound
+        return INFLATE;
+    }
+
+    private void bind(ServiceReference candidate)
+    {
+        Object candidateService = null;
+        ServiceEntry<Object> candidateEntry = null;
+        boolean isBound = false;
+        try
+        {
+            candidateService = context.getService(candidate);
+            if (candidateService != null)
+            {
+                candidateEntry = new ServiceEntry<Object>(candidateService, captureProperties(candidate));
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                if (candidate.equals(adding)) // otherwise it was removed during getting service
+                {
+                    adding = null;
+                    if (candidateEntry != null && !closed && !inflating)
+                    {
+                        entry = candidateEntry;
+                        reference = candidate;
+                        trackingCount++;
+                        isBound = true;
+                    }
+                }
+            }
+            if (candidateService != null && !isBound)
+            {
+                context.ungetService(candidate);
+            }
+        }
+    }
+
+    /**
+     * Replace entry of bound service with entry of modified properties.
+     *
+     * @return false when modified service is not bound
+     */
+    private boolean modify(ServiceReference candidate)
+    {
+        ServiceEntry<Object> previous = entry;
+        if (previous == null || !candidate.equals(reference))
+        {
+            return false;
+        }
+        ServiceEntry<Object> modified = new ServiceEntry<Object>(previous.getService(), captureProperties(candidate));
+        synchronized (this)
+        {
+            if (entry != previous)
+            {
+                return true; // service was removed in the meantime
+            }
+            entry = modified;
+            trackingCount++;
+        }
+        serviceModified(modified);
+        return true;
+    }
+
+    /**
+     * Replace own fields with full osgi tracker. Opened osgi tracker finds all services by itself. Bound service stays in
+     * own fields until then, also when it is removed, so lookups don't miss services while osgi tracker is opening.
+     */
+    private void inflate()
+    {
+        PinningServiceTracker full = createServiceTracker(context);
+        full.open();
+        boolean closedDuringInflating;
+        ServiceReference released = null;
+        ServiceEntry<Object> releasedEntry = null;
+        boolean isRemoved = false;
+        synchronized (this)
+        {
+            closedDuringInflating = closed;
+            if (!closedDuringInflating)
+            {
+                inflated = full;
+                released = reference;
+                releasedEntry = entry;
+                isRemoved = removedDuringInflating;
+                reference = null;
+                entry = null;
+                trackingCount++;
+            }
+        }
+        if (closedDuringInflating)
+        {
+            full.close();
+            return;
+        }
+        removeServiceListener();
+        if (released != null)
+        {
+            if (isRemoved)
+            {
+                serviceRemoved(released, releasedEntry.getService());
+            }
+            context.ungetService(released);
+        }
+    }
+
+    private void untrack(ServiceReference removed)
+    {
+        ServiceEntry<Object> removedEntry;
+        synchronized (this)
+        {
+            if (removed.equals(adding))
+            {
+                adding = null; // bind drops and releases it
+                return;
+            }
+            if (reference == null || !reference.equals(removed))
+            {
+                return;
+            }
+            if (inflating)
+            {
+                removedDuringInflating = true; // lookups use bound service until full osgi tracker replaces it
+                return;
+            }
+            removedEntry = entry;
+            reference = null;
+            entry = null;
+            trackingCount++;
+        }
+        serviceRemoved(removed, removedEntry.getService());
+        context.ungetService(removed);
+    }
+
+    @Override
+    void closeTracker()
+    {
+        PinningServiceTracker full;
+        ServiceReference released;
+        ServiceEntry<Object> releasedEntry;
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            full = inflated;
+            released = reference;
+            releasedEntry = entry;
+            reference = null;
+            entry = null;
+            trackingCount++;
+        }
+        if (full != null)
+        {
+            full.close();
+        }
+        else
+        {
+            removeServiceListener();
+        }
+        if (released != null)
+        {
+            serviceRemoved(released, releasedEntry.getService());
+            context.ungetService(released);
+        }
+    }
+
+    private void removeServiceListener()
+    {
+        try
+        {
+            context.removeServiceListener(this);
+        }
+        catch (IllegalStateException ex)
+        {
+            // bundle context is already invalid
+        }
+    }
+
+    @Override
+    Object getTrackedService()
+    {
+        PinningServiceTracker full = inflated;
+        if (full != null)
+        {
+            return full.getHeadService();
+        }
+        ServiceEntry<Object> result = entry;
+        return result == null ? null : result.getService();
+    }
+
+    @Override
+    ServiceReference getTrackedReference()
+    {
+        PinningServiceTracker full = inflated;
+        return full != null ? full.getHeadReference() : reference;
+    }
+
+    @Override
+    Object getTrackedService(ServiceReference candidate)
+    {
+        ServiceEntry<?> result = getTrackedEntry(candidate);
+        return result == null ? null : result.getService();
+    }
+
+    @Override
+    ServiceEntry<?> getTrackedEntry(ServiceReference candidate)
+    {
+        PinningServiceTracker full = inflated;
+        if (full != null)
+        {
+            return full.getEntry(candidate);
+        }
+        ServiceEntry<Object> result = entry;
+        return result != null && candidate.equals(reference) ? result : null;
+    }
+
+    @Override
+    Object[] getTrackedServices()
+    {
+        PinningServiceTracker full = inflated;
+        if (full != null)
+        {
+            return full.getRankedServices();
+        }
+        ServiceEntry<Object> result = entry;
+        return result == null ? null : new Object[] { result.getService() };
+    }
+
+    @Override
+    ServiceReference[] getTrackedReferences()
+    {
+        PinningServiceTracker full = inflated;
+        if (full != null)
+        {
+            return full.getRankedReferences();
+        }
+        ServiceReference result = reference;
+        return result == null ? null : new ServiceReference[] { result };
+    }
+
+    /**
+     * Own count is never negative and counts of inflated tracker are mapped to negative numbers, so they never equal.
+     */
+    @Override
+    int getTrackingCount()
+    {
+        PinningServiceTracker full = inflated;
+        return full != null ? -1 - full.getChainCount() : trackingCount;
+    }
+
+    /**
+     * Single service has no standby, so failovers happen only in inflated tracker.
+     */
+    @Override
+    public long getFailoverCount()
+    {
+        PinningServiceTracker full = inflated;
+        return full != null ? full.getFailoverCount() : 0L;
+    }
+
+    /**
+     * Check if full osgi tracker replaced own fields.
+     */
+    boolean isInflated()
+    {
+        return inflated != null;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import kodstark.osgi.tracker.ServiceEntry;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Tracker shared by all bundles of framework. It tracks all services of class, also services not assignable to hub
+ * bundle, and notifies its views about removed and modified services.
+ *
+ * @param <T>
+ *            type of tracking service.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+public class HubServiceTracker<T> extends LazyServiceTracker<T>
+{
+    private final List<SharedServiceTracker<T>> views = new CopyOnWriteArrayList<SharedServiceTracker<T>>();
+
+    /**
+     * @param context
+     *            context of hub bundle
+     */
+    public HubServiceTracker(BundleContext context, String clazz)
+    {
+        super(context, clazz, null, -1L);
+    }
+
+    @Override
+    boolean isTrackingAllServices()
+    {
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    void serviceRemoved(ServiceReference reference, Object service)
+    {
+        super.serviceRemoved(reference, service);
+        for (SharedServiceTracker<T> view : views)
+        {
+            view.serviceRemoved(reference, service);
+        }
+    }
+
+    @Override
+    void serviceModified(ServiceEntry<?> modified)
+    {
+        super.serviceModified(modified);
+        for (SharedServiceTracker<T> view : views)
+        {
+            view.serviceModified(modified);
+        }
+    }
+
+    void addView(SharedServiceTracker<T> view)
+    {
+        views.add(view);
+    }
+
+    void removeView(SharedServiceTracker<T> view)
+    {
+        views.remove(view);
+    }
+}
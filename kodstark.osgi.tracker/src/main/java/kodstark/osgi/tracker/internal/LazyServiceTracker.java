@@ -12,15 +12,31 @@
  */
 package kodstark.osgi.tracker.internal;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import kodstark.osgi.tracker.BindingPolicy;
+import kodstark.osgi.tracker.ServiceEntry;
+
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
 import org.osgi.util.tracker.ServiceTracker;
-import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 /**
- * Tracker with open method without synchronization.
+ * Tracker with open method without synchronization. Threads waiting for tracker opened by other thread are parked, they
+ * don't hold or wait for any monitor.
  * 
  * @param <T>
  *            type of tracking service.
@@ -32,53 +48,267 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
 public class LazyServiceTracker<T>
 {
     @SuppressWarnings("rawtypes")
-    private final ServiceTracker tracker;
-    private volatile boolean isNotOpen = true;
+    private static final AtomicReferenceFieldUpdater<LazyServiceTracker, ServiceEntry> PINNED_ENTRY = AtomicReferenceFieldUpdater
+            .newUpdater(LazyServiceTracker.class, ServiceEntry.class, "pinnedEntry");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<LazyServiceTracker, Object> OPEN_STATE = AtomicReferenceFieldUpdater
+            .newUpdater(LazyServiceTracker.class, Object.class, "openState");
+    private static final Object OPENED = new Object();
+    private static final Object CLOSED = new Object();
+    private final PinningServiceTracker tracker;
+    /**
+     * It is null before opening, {@link CountDownLatch} during opening, {@link #OPENED} or {@link #CLOSED}.
+     */
+    private volatile Object openState;
     private final String clazz;
+    private final String filter;
+    private final long originBundleId;
+    private volatile BindingPolicy bindingPolicy = BindingPolicy.DYNAMIC_GREEDY;
+    /**
+     * Entry of service pinned by {@link BindingPolicy#STICKY} policy. It is always null for other policies.
+     */
+    private volatile ServiceEntry<T> pinnedEntry;
+    /**
+     * Immutable list of services returned by {@link #getServices()} until tracking count changes.
+     */
+    private volatile ServicesSnapshot servicesSnapshot;
+    /**
+     * Immutable list of entries returned by {@link #getServiceEntries()} until tracking count changes.
+     */
+    private volatile ServicesSnapshot entriesSnapshot;
 
-    @SuppressWarnings("rawtypes")
-    LazyServiceTracker(final BundleContext context, final String clazz, final ServiceTrackerCustomizer customizer)
+    LazyServiceTracker(final BundleContext context, final String clazz, final String filter, final long originBundleId)
+    {
+        this.clazz = clazz;
+        this.filter = filter;
+        this.originBundleId = originBundleId;
+        tracker = createServiceTracker(context);
+    }
+
+    /**
+     * Constructor for subclasses which track services without osgi tracker.
+     */
+    LazyServiceTracker(final String clazz, final String filter, final long originBundleId)
     {
-        tracker = new ServiceTracker(context, clazz, customizer);
+        tracker = null;
         this.clazz = clazz;
+        this.filter = filter;
+        this.originBundleId = originBundleId;
     }
 
     public void openOnlyFirstTime()
     {
-        if (isNotOpen)
+        Object state = openState;
+        while (state != OPENED && state != CLOSED)
         {
-            synchronized (this)
+            if (state == null)
             {
-                if (isNotOpen)
+                CountDownLatch opening = new CountDownLatch(1);
+                if (OPEN_STATE.compareAndSet(this, null, opening))
                 {
-                    tracker.open();
-                    isNotOpen = false;
+                    open(opening);
                 }
             }
+            else
+            {
+                awaitUninterruptibly((CountDownLatch) state);
+            }
+            state = openState;
+        }
+    }
+
+    private void open(CountDownLatch opening)
+    {
+        boolean isOpened = false;
+        try
+        {
+            openTracker();
+            isOpened = true;
+        }
+        finally
+        {
+            // when tracker is closed during opening then state stays closed
+            OPEN_STATE.compareAndSet(this, opening, isOpened ? OPENED : null);
+            opening.countDown();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
         }
     }
 
     public T getService()
     {
-        return (T) tracker.getService();
+        ServiceEntry<T> pinned = pinnedEntry;
+        if (pinned != null)
+        {
+            return pinned.getService();
+        }
+        if (bindingPolicy == BindingPolicy.STICKY)
+        {
+            pinned = pinEntry();
+            return pinned == null ? null : pinned.getService();
+        }
+        return (T) getTrackedService();
+    }
+
+    /**
+     * Get entry of service returned by {@link #getService()} or null when there is no service.
+     */
+    @SuppressWarnings("rawtypes")
+    public ServiceEntry<T> getServiceEntry()
+    {
+        ServiceEntry<T> pinned = pinnedEntry;
+        if (pinned != null)
+        {
+            return pinned;
+        }
+        if (bindingPolicy == BindingPolicy.STICKY)
+        {
+            return pinEntry();
+        }
+        ServiceReference reference = getTrackedReference();
+        return reference == null ? null : (ServiceEntry<T>) getTrackedEntry(reference);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private ServiceEntry<T> pinEntry()
+    {
+        while (true)
+        {
+            ServiceReference reference = getTrackedReference();
+            ServiceEntry<T> entry = reference == null ? null : (ServiceEntry<T>) getTrackedEntry(reference);
+            if (entry == null)
+            {
+                return null;
+            }
+            if (!PINNED_ENTRY.compareAndSet(this, null, entry))
+            {
+                ServiceEntry<T> winner = pinnedEntry;
+                if (winner != null)
+                {
+                    return winner;
+                }
+                continue;
+            }
+            if (bindingPolicy != BindingPolicy.STICKY)
+            {
+                PINNED_ENTRY.compareAndSet(this, entry, null); // policy changed during pinning, so it was not cleared
+                return entry;
+            }
+            if (getTrackedEntry(reference) == entry)
+            {
+                return entry;
+            }
+            PINNED_ENTRY.compareAndSet(this, entry, null); // removed or modified before pinned, so try again
+        }
     }
 
+    /**
+     * Get immutable list of tracked services. The same list is returned until tracked services change, so steady state
+     * lookups don't allocate.
+     */
     public List<T> getServices()
     {
-        Object[] result = tracker.getServices();
+        int trackingCount = getTrackingCount();
+        ServicesSnapshot snapshot = servicesSnapshot;
+        if (snapshot != null && snapshot.trackingCount == trackingCount)
+        {
+            return (List<T>) snapshot.services;
+        }
+        Object[] result = getTrackedServices();
+        List<T> services;
         if (result != null)
         {
-            return (List<T>) Arrays.asList(result);
+            services = (List<T>) Collections.unmodifiableList(Arrays.asList(result));
         }
         else
         {
-            return Collections.emptyList();
+            services = Collections.emptyList();
+        }
+        if (getTrackingCount() == trackingCount) // services didn't change during building list
+        {
+            servicesSnapshot = new ServicesSnapshot(trackingCount, services);
+        }
+        return services;
+    }
+
+    /**
+     * Get immutable list of entries of tracked services. The same list is returned until tracked services or their
+     * properties change.
+     */
+    @SuppressWarnings("rawtypes")
+    public List<ServiceEntry<T>> getServiceEntries()
+    {
+        int trackingCount = getTrackingCount();
+        ServicesSnapshot snapshot = entriesSnapshot;
+        if (snapshot != null && snapshot.trackingCount == trackingCount)
+        {
+            return (List<ServiceEntry<T>>) snapshot.services;
+        }
+        ServiceReference[] references = getTrackedReferences();
+        List<ServiceEntry<T>> entries;
+        if (references != null)
+        {
+            entries = new ArrayList<ServiceEntry<T>>(references.length);
+            for (ServiceReference reference : references)
+            {
+                ServiceEntry<T> entry = (ServiceEntry<T>) getTrackedEntry(reference);
+                if (entry != null)
+                {
+                    entries.add(entry);
+                }
+            }
+            entries = Collections.unmodifiableList(entries);
+        }
+        else
+        {
+            entries = Collections.emptyList();
+        }
+        if (getTrackingCount() == trackingCount) // entries didn't change during building list
+        {
+            entriesSnapshot = new ServicesSnapshot(trackingCount, entries);
         }
+        return entries;
     }
 
+    /**
+     * Close tracker. Closed tracker is never opened again. When other thread is opening tracker then method waits until
+     * opening is finished.
+     */
     public void close()
     {
-        tracker.close();
+        Object state = OPEN_STATE.getAndSet(this, CLOSED);
+        if (state instanceof CountDownLatch)
+        {
+            awaitUninterruptibly((CountDownLatch) state);
+        }
+        closeTracker();
+    }
+
+    /**
+     * Check if tracker is closed. Closed tracker doesn't find any services and it should be replaced by new one.
+     */
+    public boolean isClosed()
+    {
+        return openState == CLOSED;
     }
 
     public String getClazz()
@@ -86,11 +316,522 @@ public class LazyServiceTracker<T>
         return clazz;
     }
 
+    /**
+     * Get filter which tracked services must match in addition to class or null when there is no such filter.
+     */
+    public String getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * Get filter of service events matching class and additional filter.
+     */
+    String getListenerFilter()
+    {
+        String classFilter = "(" + Constants.OBJECTCLASS + "=" + clazz + ")";
+        return filter == null ? classFilter : "(&" + classFilter + filter + ")";
+    }
+
+    /**
+     * Get id of bundle which loaded tracked class or -1 when class is not loaded by bundle.
+     */
+    public long getOriginBundleId()
+    {
+        return originBundleId;
+    }
+
+    public BindingPolicy getBindingPolicy()
+    {
+        return bindingPolicy;
+    }
+
+    /**
+     * Change binding policy. Service pinned so far is released when policy is no longer
+     * {@link BindingPolicy#STICKY}.
+     */
+    public void setBindingPolicy(BindingPolicy bindingPolicy)
+    {
+        this.bindingPolicy = bindingPolicy;
+        if (bindingPolicy != BindingPolicy.STICKY)
+        {
+            pinnedEntry = null;
+        }
+    }
+
+    void openTracker()
+    {
+        tracker.open(isTrackingAllServices());
+    }
+
+    /**
+     * Check if osgi tracker tracks also services not assignable to bundle of context.
+     */
+    boolean isTrackingAllServices()
+    {
+        return false;
+    }
+
+    void closeTracker()
+    {
+        tracker.close();
+    }
+
+    Object getTrackedService()
+    {
+        return tracker.getHeadService();
+    }
+
+    @SuppressWarnings("rawtypes")
+    ServiceReference getTrackedReference()
+    {
+        return tracker.getHeadReference();
+    }
+
+    @SuppressWarnings("rawtypes")
+    Object getTrackedService(ServiceReference reference)
+    {
+        ServiceEntry<?> entry = getTrackedEntry(reference);
+        return entry == null ? null : entry.getService();
+    }
+
+    /**
+     * Get tracked services ordered by ranking or null when there is no service.
+     */
+    Object[] getTrackedServices()
+    {
+        return tracker.getRankedServices();
+    }
+
+    /**
+     * Get tracked references ordered by ranking or null when there is no service.
+     */
+    @SuppressWarnings("rawtypes")
+    ServiceReference[] getTrackedReferences()
+    {
+        return tracker.getRankedReferences();
+    }
+
+    /**
+     * Get entry of tracked service or null when reference is not tracked.
+     */
+    @SuppressWarnings("rawtypes")
+    ServiceEntry<?> getTrackedEntry(ServiceReference reference)
+    {
+        return tracker.getEntry(reference);
+    }
+
+    /**
+     * Get number which changes every time when tracked services change.
+     */
+    int getTrackingCount()
+    {
+        return tracker.getChainCount();
+    }
+
+    /**
+     * Get how many times removed best service was replaced by standby service.
+     */
+    public long getFailoverCount()
+    {
+        return tracker.getFailoverCount();
+    }
+
+    /**
+     * Notify that tracked service is removed. Pinned service is released when it is the same as removed service.
+     */
+    @SuppressWarnings("rawtypes")
+    void serviceRemoved(ServiceReference reference, Object service)
+    {
+        ServiceEntry<T> pinned = pinnedEntry;
+        if (pinned != null && pinned.getService() == service)
+        {
+            PINNED_ENTRY.compareAndSet(this, pinned, null);
+        }
+    }
+
+    /**
+     * Notify that properties of tracked service are modified. Pinned entry is replaced when it holds the same service.
+     * Entry is matched by service and not by identity, because it could be pinned before tracker was inflated.
+     */
+    void serviceModified(ServiceEntry<?> modified)
+    {
+        ServiceEntry<T> pinned = pinnedEntry;
+        if (pinned != null && pinned.getService() == modified.getService())
+        {
+            PINNED_ENTRY.compareAndSet(this, pinned, modified);
+        }
+    }
+
+    /**
+     * Copy properties of service into immutable map. Array values are copied, so changes of arrays of framework are not
+     * visible in entry.
+     */
+    @SuppressWarnings("rawtypes")
+    static Map<String, Object> captureProperties(ServiceReference reference)
+    {
+        String[] keys = reference.getPropertyKeys();
+        if (keys == null || keys.length == 0)
+        {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> result = new HashMap<String, Object>(keys.length * 4 / 3 + 1);
+        for (String key : keys)
+        {
+            result.put(key, copyArray(reference.getProperty(key)));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static Object copyArray(Object value)
+    {
+        if (value == null || !value.getClass().isArray())
+        {
+            return value;
+        }
+        int length = Array.getLength(value);
+        Object result = Array.newInstance(value.getClass().getComponentType(), length);
+        System.arraycopy(value, 0, result, 0, length);
+        return result;
+    }
+
+    PinningServiceTracker createServiceTracker(BundleContext context)
+    {
+        if (filter == null)
+        {
+            return new PinningServiceTracker(context, clazz);
+        }
+        try
+        {
+            return new PinningServiceTracker(context, context.createFilter(getListenerFilter()));
+        }
+        catch (InvalidSyntaxException ex)
+        {
+            throw new IllegalArgumentException("Invalid filter " + filter, ex);
+        }
+    }
+
+    /**
+     * Osgi tracker which keeps chain of service entries ordered by ranking and releases pinned service when its
+     * reference is removed. Lookups read only the chain. Head of chain is the best service and the rest are standby
+     * services, so when head is removed the next service is promoted by single write.
+     */
+    @SuppressWarnings("rawtypes")
+    class PinningServiceTracker extends ServiceTracker
+    {
+        /**
+         * Lock of chain changes. Monitor of tracker is not used, because osgi tracker opens and closes under it.
+         */
+        private final Object chainLock = new Object();
+        private volatile Standby chain;
+        /**
+         * Changed under lock after chain changes.
+         */
+        private volatile int chainCount;
+        private volatile long failoverCount;
+
+        PinningServiceTracker(BundleContext context, String clazz)
+        {
+            super(context, clazz, null);
+        }
+
+        PinningServiceTracker(BundleContext context, Filter filter)
+        {
+            super(context, filter, null);
+        }
+
+        @Override
+        public Object addingService(ServiceReference reference)
+        {
+            Object service = super.addingService(reference);
+            if (service != null)
+            {
+                link(reference, new ServiceEntry<Object>(service, captureProperties(reference)));
+            }
+            return service;
+        }
+
+        @Override
+        public void modifiedService(ServiceReference reference, Object service)
+        {
+            ServiceEntry<Object> modified = new ServiceEntry<Object>(service, captureProperties(reference));
+            if (relink(reference, modified))
+            {
+                serviceModified(modified);
+            }
+            super.modifiedService(reference, service);
+        }
+
+        @Override
+        public void removedService(ServiceReference reference, Object service)
+        {
+            unlink(reference);
+            serviceRemoved(reference, service);
+            super.removedService(reference, service);
+        }
+
+        private void link(ServiceReference reference, ServiceEntry<Object> entry)
+        {
+            synchronized (chainLock)
+            {
+                chain = Standby.insert(chain, reference, entry);
+                chainCount++;
+            }
+        }
+
+        /**
+         * Replace entry of modified service. Ranking could change so entry is inserted again. Osgi tracker notifies
+         * outside of its lock, so service could be unlinked already and then it is not linked again.
+         *
+         * @return false when service is not linked
+         */
+        private boolean relink(ServiceReference reference, ServiceEntry<Object> entry)
+        {
+            synchronized (chainLock)
+            {
+                if (Standby.find(chain, reference) == null)
+                {
+                    return false;
+                }
+                chain = Standby.insert(Standby.remove(chain, reference), reference, entry);
+                chainCount++;
+                return true;
+            }
+        }
+
+        private void unlink(ServiceReference reference)
+        {
+            synchronized (chainLock)
+            {
+                Standby head = chain;
+                if (head == null)
+                {
+                    return;
+                }
+                if (head.reference.equals(reference))
+                {
+                    chain = head.next; // promote standby
+                    if (head.next != null && openState != CLOSED)
+                    {
+                        failoverCount++;
+                    }
+                }
+                else
+                {
+                    chain = Standby.remove(head, reference);
+                }
+                chainCount++;
+            }
+        }
+
+        Object getHeadService()
+        {
+            Standby head = chain;
+            return head == null ? null : head.entry.getService();
+        }
+
+        ServiceReference getHeadReference()
+        {
+            Standby head = chain;
+            return head == null ? null : head.reference;
+        }
+
+        ServiceEntry<Object> getEntry(ServiceReference reference)
+        {
+            Standby link = Standby.find(chain, reference);
+            return link == null ? null : link.entry;
+        }
+
+        Object[] getRankedServices()
+        {
+            Standby head = chain;
+            if (head == null)
+            {
+                return null;
+            }
+            Object[] result = new Object[Standby.size(head)];
+            int i = 0;
+            for (Standby link = head; link != null; link = link.next)
+            {
+                result[i++] = link.entry.getService();
+            }
+            return result;
+        }
+
+        ServiceReference[] getRankedReferences()
+        {
+            Standby head = chain;
+            if (head == null)
+            {
+                return null;
+            }
+            ServiceReference[] result = new ServiceReference[Standby.size(head)];
+            int i = 0;
+            for (Standby link = head; link != null; link = link.next)
+            {
+                result[i++] = link.reference;
+            }
+            return result;
+        }
+
+        int getChainCount()
+        {
+            return chainCount;
+        }
+
+        long getFailoverCount()
+        {
+            return failoverCount;
+        }
+    }
+
+    /**
+     * Immutable link of chain of tracked services ordered by ranking. Changes copy links before changed link and share
+     * the rest of chain.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final class Standby
+    {
+        private final ServiceReference reference;
+        private final ServiceEntry<Object> entry;
+        private final Standby next;
+
+        Standby(ServiceReference reference, ServiceEntry<Object> entry, Standby next)
+        {
+            this.reference = reference;
+            this.entry = entry;
+            this.next = next;
+        }
+
+        /**
+         * Insert reference before first link of lower ranking. It is iterative, so long chain doesn't overflow stack.
+         */
+        @SuppressWarnings("unchecked")
+        static Standby insert(Standby head, ServiceReference reference, ServiceEntry<Object> entry)
+        {
+            int prefix = 0;
+            Standby link = head;
+            while (link != null && reference.compareTo(link.reference) <= 0)
+            {
+                prefix++;
+                link = link.next;
+            }
+            return copyPrefix(head, prefix, new Standby(reference, entry, link));
+        }
+
+        static Standby remove(Standby head, ServiceReference reference)
+        {
+            int prefix = 0;
+            Standby link = head;
+            while (link != null && !link.reference.equals(reference))
+            {
+                prefix++;
+                link = link.next;
+            }
+            return link == null ? head : copyPrefix(head, prefix, link.next);
+        }
+
+        /**
+         * Copy given number of first links of chain in front of new tail.
+         */
+        private static Standby copyPrefix(Standby head, int prefix, Standby tail)
+        {
+            if (prefix == 0)
+            {
+                return tail;
+            }
+            Standby[] links = new Standby[prefix];
+            Standby link = head;
+            for (int i = 0; i < prefix; i++)
+            {
+                links[i] = link;
+                link = link.next;
+            }
+            Standby result = tail;
+            for (int i = prefix - 1; i >= 0; i--)
+            {
+                result = new Standby(links[i].reference, links[i].entry, result);
+            }
+            return result;
+        }
+
+        static Standby find(Standby link, ServiceReference reference)
+        {
+            while (link != null && !link.reference.equals(reference))
+            {
+                link = link.next;
+            }
+            return link;
+        }
+
+        static int size(Standby link)
+        {
+            int result = 0;
+            for (; link != null; link = link.next)
+            {
+                result++;
+            }
+            return result;
+        }
+    }
+
+    private static class ServicesSnapshot
+    {
+        private final int trackingCount;
+        private final List<?> services;
+
+        ServicesSnapshot(int trackingCount, List<?> services)
+        {
+            this.trackingCount = trackingCount;
+            this.services = services;
+        }
+    }
+
     public static class Factory
     {
+        private final boolean compact;
+
+        public Factory()
+        {
+            this(true);
+        }
+
+        /**
+         * @param compact
+         *            when true then created trackers keep single service in own fields and create osgi tracker only
+         *            when second service appears
+         */
+        public Factory(boolean compact)
+        {
+            this.compact = compact;
+        }
+
         public <T> LazyServiceTracker<T> createLazyServiceTracker(BundleContext context, Class<T> clazz)
         {
-            return new LazyServiceTracker<T>(context, clazz.getName(), null);
+            return createLazyServiceTracker(context, clazz, null);
+        }
+
+        /**
+         * Create tracker of services of given class which match additional filter. When filter is null then all
+         * services of class are tracked.
+         */
+        public <T> LazyServiceTracker<T> createLazyServiceTracker(BundleContext context, Class<T> clazz, String filter)
+        {
+            if (compact)
+            {
+                return new CompactServiceTracker<T>(context, clazz.getName(), filter, getOriginBundleId(clazz));
+            }
+            return new LazyServiceTracker<T>(context, clazz.getName(), filter, getOriginBundleId(clazz));
+        }
+
+        /**
+         * Get id of bundle which loaded class. Only id is kept by tracker so it doesn't hold class loader of the
+         * bundle.
+         */
+        protected long getOriginBundleId(Class<?> clazz)
+        {
+            Bundle bundle = FrameworkUtil.getBundle(clazz);
+            return bundle == null ? -1L : bundle.getBundleId();
         }
     }
 }
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kodstark.osgi.tracker.ServiceEntry;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * View of one bundle over tracker shared by all bundles. It doesn't track services by itself, it only hides services
+ * which are not assignable to its bundle. Results of {@link ServiceReference#isAssignableTo(Bundle, String)} are cached
+ * until service is removed.
+ *
+ * @param <T>
+ *            type of tracking service.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+@SuppressWarnings("rawtypes")
+public class SharedServiceTracker<T> extends LazyServiceTracker<T>
+{
+    private final HubServiceTracker<T> shared;
+    private final Bundle bundle;
+    private final ConcurrentMap<ServiceReference, Boolean> visibility = new ConcurrentHashMap<ServiceReference, Boolean>();
+    /**
+     * Last reference found visible. Usually it is the only tracked reference so it is checked without map lookup.
+     */
+    private volatile ServiceReference lastVisible;
+    private final AtomicLong failoverCount = new AtomicLong();
+
+    /**
+     * @param bundle
+     *            bundle which services must be assignable to
+     */
+    public SharedServiceTracker(HubServiceTracker<T> shared, Bundle bundle, long originBundleId)
+    {
+        super(shared.getClazz(), null, originBundleId);
+        this.shared = shared;
+        this.bundle = bundle;
+    }
+
+    @Override
+    void openTracker()
+    {
+        shared.openOnlyFirstTime();
+        shared.addView(this);
+    }
+
+    @Override
+    void closeTracker()
+    {
+        shared.removeView(this);
+        visibility.clear();
+        lastVisible = null;
+    }
+
+    /**
+     * View is closed also when shared tracker is closed, so register replaces it by own tracker.
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return super.isClosed() || shared.isClosed();
+    }
+
+    @Override
+    void serviceRemoved(ServiceReference reference, Object service)
+    {
+        super.serviceRemoved(reference, service);
+        if (isFailover(reference))
+        {
+            failoverCount.incrementAndGet();
+        }
+        visibility.remove(reference);
+        if (reference.equals(lastVisible))
+        {
+            lastVisible = null;
+        }
+    }
+
+    @Override
+    Object getTrackedService()
+    {
+        ServiceReference reference = getTrackedReference();
+        return reference == null ? null : shared.getTrackedService(reference);
+    }
+
+    /**
+     * Get best visible reference. References of shared tracker are ordered by ranking, so it is the first visible.
+     */
+    @Override
+    ServiceReference getTrackedReference()
+    {
+        ServiceReference best = shared.getTrackedReference();
+        if (best == null || isVisible(best))
+        {
+            return best;
+        }
+        ServiceReference[] references = shared.getTrackedReferences();
+        if (references != null)
+        {
+            for (ServiceReference candidate : references)
+            {
+                if (isVisible(candidate))
+                {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    Object getTrackedService(ServiceReference reference)
+    {
+        return isVisible(reference) ? shared.getTrackedService(reference) : null;
+    }
+
+    @Override
+    ServiceEntry<?> getTrackedEntry(ServiceReference reference)
+    {
+        return isVisible(reference) ? shared.getTrackedEntry(reference) : null;
+    }
+
+    @Override
+    Object[] getTrackedServices()
+    {
+        ServiceReference[] references = shared.getTrackedReferences();
+        if (references == null)
+        {
+            return null;
+        }
+        List<Object> result = new ArrayList<Object>(references.length);
+        for (ServiceReference reference : references)
+        {
+            Object service = getTrackedService(reference);
+            if (service != null)
+            {
+                result.add(service);
+            }
+        }
+        return result.isEmpty() ? null : result.toArray();
+    }
+
+    @Override
+    ServiceReference[] getTrackedReferences()
+    {
+        ServiceReference[] references = shared.getTrackedReferences();
+        if (references == null)
+        {
+            return null;
+        }
+        List<ServiceReference> result = new ArrayList<ServiceReference>(references.length);
+        for (ServiceReference reference : references)
+        {
+            if (isVisible(reference))
+            {
+                result.add(reference);
+            }
+        }
+        return result.isEmpty() ? null : result.toArray(new ServiceReference[result.size()]);
+    }
+
+    @Override
+    int getTrackingCount()
+    {
+        return shared.getTrackingCount();
+    }
+
+    /**
+     * Get failovers of this view. Failovers of shared tracker are not used, because they count also services hidden
+     * from bundle of view.
+     */
+    @Override
+    public long getFailoverCount()
+    {
+        return failoverCount.get();
+    }
+
+    /**
+     * Check if removed reference was best visible reference and other visible reference replaces it. Shared tracker
+     * doesn't track removed reference any more. Only references found visible by lookups are considered.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean isFailover(ServiceReference removed)
+    {
+        if (isClosed() || !(removed.equals(lastVisible) || Boolean.TRUE.equals(visibility.get(removed))))
+        {
+            return false;
+        }
+        ServiceReference best = getTrackedReference();
+        return best != null && best.compareTo(removed) < 0;
+    }
+
+    private boolean isVisible(ServiceReference reference)
+    {
+        if (reference == lastVisible)
+        {
+            return true;
+        }
+        Boolean result = visibility.get(reference);
+        if (result == null)
+        {
+            result = Boolean.valueOf(bundle == null || reference.isAssignableTo(bundle, getClazz()));
+            visibility.put(reference, result);
+            if (shared.getTrackedService(reference) == null)
+            {
+                visibility.remove(reference); // removed before cached, so it would stay in cache forever
+            }
+        }
+        if (result.booleanValue())
+        {
+            lastVisible = reference;
+        }
+        return result.booleanValue();
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader of trace written by {@link TraceRecorder}.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+public class TraceReader
+{
+    private final DataInputStream in;
+    private final List<String> names = new ArrayList<String>();
+    private long lastNanos;
+
+    public TraceReader(InputStream in) throws IOException
+    {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if (this.in.readInt() != TraceRecorder.MAGIC)
+        {
+            throw new IOException("Not a trace");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != TraceRecorder.VERSION)
+        {
+            throw new IOException("Unsupported trace version " + version);
+        }
+    }
+
+    /**
+     * Read next service event or lookup or return null at the end of trace.
+     */
+    public Record readRecord() throws IOException
+    {
+        while (true)
+        {
+            int tag = in.read();
+            if (tag < 0)
+            {
+                return null;
+            }
+            switch (tag)
+            {
+                case TraceRecorder.TAG_NAME:
+                    int number = (int) readVarLong();
+                    if (number != names.size())
+                    {
+                        throw new IOException("Unexpected name number " + number);
+                    }
+                    names.add(in.readUTF());
+                    break;
+                case TraceRecorder.TAG_SERVICE_EVENT:
+                    return readServiceEvent();
+                case TraceRecorder.TAG_LOOKUP:
+                    return readLookup();
+                default:
+                    throw new IOException("Unknown record " + tag);
+            }
+        }
+    }
+
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    private Record readServiceEvent() throws IOException
+    {
+        long nanos = readTime();
+        int eventType = in.readUnsignedByte();
+        long serviceId = readVarLong();
+        int ranking = (int) unZigZag(readVarLong());
+        String[] classNames = new String[(int) readVarLong()];
+        for (int i = 0; i < classNames.length; i++)
+        {
+            classNames[i] = readName();
+        }
+        return new Record(TraceRecorder.TAG_SERVICE_EVENT, nanos, eventType, serviceId, ranking, classNames, false);
+    }
+
+    private Record readLookup() throws IOException
+    {
+        long nanos = readTime();
+        int kind = in.readUnsignedByte();
+        String[] classNames = new String[] { readName() };
+        boolean found = in.readBoolean();
+        return new Record(TraceRecorder.TAG_LOOKUP, nanos, kind, 0L, 0, classNames, found);
+    }
+
+    private String readName() throws IOException
+    {
+        int number = (int) readVarLong();
+        if (number >= names.size())
+        {
+            throw new IOException("Undefined name number " + number);
+        }
+        return names.get(number);
+    }
+
+    private long readTime() throws IOException
+    {
+        lastNanos += unZigZag(readVarLong());
+        return lastNanos;
+    }
+
+    private long readVarLong() throws IOException
+    {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = in.read();
+            if (b < 0)
+            {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return result;
+            }
+        }
+        throw new IOException("Malformed var long");
+    }
+
+    private static long unZigZag(long value)
+    {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * Service event or lookup read from trace.
+     */
+    public static class Record
+    {
+        private final int tag;
+        private final long nanos;
+        private final int type;
+        private final long serviceId;
+        private final int ranking;
+        private final String[] classNames;
+        private final boolean found;
+
+        Record(int tag, long nanos, int type, long serviceId, int ranking, String[] classNames, boolean found)
+        {
+            this.tag = tag;
+            this.nanos = nanos;
+            this.type = type;
+            this.serviceId = serviceId;
+            this.ranking = ranking;
+            this.classNames = classNames;
+            this.found = found;
+        }
+
+        public boolean isServiceEvent()
+        {
+            return tag == TraceRecorder.TAG_SERVICE_EVENT;
+        }
+
+        public boolean isLookup()
+        {
+            return tag == TraceRecorder.TAG_LOOKUP;
+        }
+
+        /**
+         * Get time of record in nanoseconds since start of recording.
+         */
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        /**
+         * Get type of {@link org.osgi.framework.ServiceEvent} or kind of lookup.
+         */
+        public int getType()
+        {
+            return type;
+        }
+
+        public long getServiceId()
+        {
+            return serviceId;
+        }
+
+        public int getRanking()
+        {
+            return ranking;
+        }
+
+        /**
+         * Get class names of service or single class name of lookup.
+         */
+        public String[] getClassNames()
+        {
+            return classNames;
+        }
+
+        /**
+         * Check if lookup found service.
+         */
+        public boolean isFound()
+        {
+            return found;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2009 Kamil Demecki <kodstark@gmail.com>
+ *
+ * Licensed under the terms of any of the following licenses at your
+ * choice:
+ *
+ *  - GNU Lesser General Public License Version 2.1 or later (the "LGPL")
+ *    http://www.gnu.org/licenses/lgpl.html
+ *
+ *  - Mozilla Public License Version 1.1 or later (the "MPL")
+ *    http://www.mozilla.org/MPL/MPL-1.1.html
+ */
+package kodstark.osgi.tracker.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Recorder of service events and register lookups into compact binary trace. Trace can be read by {@link TraceReader}.
+ * <p>
+ * Trace starts with {@link #MAGIC} and {@link #VERSION} followed by records. Each record starts with tag byte. Class
+ * names are written once in {@link #TAG_NAME} record and later referenced by number. Numbers are written as var ints
+ * and times as zig-zag encoded nanosecond deltas from previous record.
+ *
+ * @author <a href="mailto:kodstark@gmail.com">Kamil Demecki</a>
+ * @since 19 Oct, 2026
+ */
+public class TraceRecorder implements ServiceListener
+{
+    public static final int MAGIC = 0x4F535452;
+    public static final int VERSION = 1;
+    /**
+     * Class name definition: name number, name.
+     */
+    public static final int TAG_NAME = 0;
+    /**
+     * Service event: time delta, event type, service id, ranking, number of class names, class name numbers.
+     */
+    public static final int TAG_SERVICE_EVENT = 1;
+    /**
+     * Lookup: time delta, lookup kind, class name number, found flag.
+     */
+    public static final int TAG_LOOKUP = 2;
+    public static final int LOOKUP_GET_SERVICE = 0;
+    public static final int LOOKUP_GET_OPTIONAL_SERVICE = 1;
+    public static final int LOOKUP_GET_SERVICES = 2;
+
+    private final DataOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+    private final long startNanos;
+    private long lastNanos;
+    private IOException failure;
+    private boolean closed;
+
+    public TraceRecorder(OutputStream out) throws IOException
+    {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Record service registered before recording started as registration at the beginning of trace.
+     */
+    @SuppressWarnings("rawtypes")
+    public void recordRegistered(ServiceReference reference)
+    {
+        recordServiceEvent(ServiceEvent.REGISTERED, reference);
+    }
+
+    @Override
+    public void serviceChanged(ServiceEvent event)
+    {
+        recordServiceEvent(event.getType(), event.getServiceReference());
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void recordServiceEvent(int type, ServiceReference reference)
+    {
+        Object id = reference.getProperty(Constants.SERVICE_ID);
+        Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+        Object classes = reference.getProperty(Constants.OBJECTCLASS);
+        String[] classNames = classes instanceof String[] ? (String[]) classes : new String[0];
+        lock.lock();
+        try
+        {
+            if (closed || failure != null)
+            {
+                return;
+            }
+            int[] nameNumbers = new int[classNames.length];
+            for (int i = 0; i < classNames.length; i++)
+            {
+                nameNumbers[i] = getNameNumber(classNames[i]);
+            }
+            out.writeByte(TAG_SERVICE_EVENT);
+            writeTime();
+            out.writeByte(type);
+            writeVarLong(id instanceof Long ? ((Long) id).longValue() : 0L);
+            writeVarLong(zigZag(ranking instanceof Integer ? ((Integer) ranking).intValue() : 0));
+            writeVarLong(nameNumbers.length);
+            for (int nameNumber : nameNumbers)
+            {
+                writeVarLong(nameNumber);
+            }
+        }
+        catch (IOException ex)
+        {
+            failure = ex;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record lookup of register.
+     *
+     * @param kind
+     *            one of LOOKUP constants
+     */
+    public void recordLookup(int kind, String clazz, boolean found)
+    {
+        lock.lock();
+        try
+        {
+            if (closed || failure != null)
+            {
+                return;
+            }
+            int nameNumber = getNameNumber(clazz);
+            out.writeByte(TAG_LOOKUP);
+            writeTime();
+            out.writeByte(kind);
+            writeVarLong(nameNumber);
+            out.writeBoolean(found);
+        }
+        catch (IOException ex)
+        {
+            failure = ex;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush and close trace.
+     *
+     * @throws IOException
+     *             when any record couldn't be written
+     */
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            out.close();
+            if (failure != null)
+            {
+                throw failure;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private int getNameNumber(String name) throws IOException
+    {
+        Integer result = names.get(name);
+        if (result == null)
+        {
+            result = names.size();
+            names.put(name, result);
+            out.writeByte(TAG_NAME);
+            writeVarLong(result);
+            out.writeUTF(name);
+        }
+        return result;
+    }
+
+    private void writeTime() throws IOException
+    {
+        long nanos = System.nanoTime() - startNanos;
+        writeVarLong(zigZag(nanos - lastNanos));
+        lastNanos = nanos;
+    }
+
+    private void writeVarLong(long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long zigZag(long value)
+    {
+        return value << 1 ^ value >> 63;
+    }
+}